@@ -0,0 +1,202 @@
+package com.moffatman.chan;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts and latency histograms for every native call, so slow ones can be found on user devices
+ * Recording is a few atomic adds, there is no locking on the hot path
+ * Each call is also a trace section, so they show up in a system trace
+ */
+class CallMetrics {
+    // Bucket i holds durations under 2^i microseconds, the last one holds everything longer (~33s)
+    private static final int BUCKET_COUNT = 26;
+    // Limit from Trace.beginSection
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Calls being handled on this thread, for crediting bytes to
+    private static final ThreadLocal<Call> current = new ThreadLocal<>();
+    private static final AtomicInteger nextCookie = new AtomicInteger();
+
+    private static class Entry {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    }
+
+    /**
+     * One call, from when it starts until its result is sent
+     */
+    static class Call {
+        private final String name;
+        private final Entry entry;
+        private final long startedAt = SystemClock.elapsedRealtimeNanos();
+        private final int cookie = nextCookie.incrementAndGet();
+        private boolean finished = false;
+
+        private Call(String name, Entry entry) {
+            this.name = name;
+            this.entry = entry;
+        }
+
+        void addBytes(long bytes) {
+            entry.bytes.addAndGet(bytes);
+        }
+
+        /**
+         * Only the first call counts, results can only be sent once anyway
+         */
+        void finish(boolean error) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            long micros = (SystemClock.elapsedRealtimeNanos() - startedAt) / 1000;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                Trace.endAsyncSection(name, cookie);
+            }
+            entry.count.incrementAndGet();
+            if (error) {
+                entry.errors.incrementAndGet();
+            }
+            entry.totalMicros.addAndGet(micros);
+            long max = entry.maxMicros.get();
+            while (micros > max && !entry.maxMicros.compareAndSet(max, micros)) {
+                max = entry.maxMicros.get();
+            }
+            entry.buckets.incrementAndGet(Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        }
+    }
+
+    private CallMetrics() {
+
+    }
+
+    private static String makeSectionName(String name) {
+        return name.length() > MAX_SECTION_NAME_LENGTH ? name.substring(0, MAX_SECTION_NAME_LENGTH) : name;
+    }
+
+    /**
+     * Start timing, the async trace section lasts until finish
+     */
+    static Call start(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            entries.putIfAbsent(name, new Entry());
+            entry = entries.get(name);
+        }
+        Call call = new Call(makeSectionName(name), entry);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(call.name, call.cookie);
+        }
+        return call;
+    }
+
+    /**
+     * Mark the part of call which runs synchronously on this thread, must be followed by endSection on the same thread
+     */
+    static void beginSection(Call call) {
+        Trace.beginSection(call.name);
+        current.set(call);
+    }
+
+    static void endSection() {
+        current.remove();
+        Trace.endSection();
+    }
+
+    /**
+     * Credit bytes copied to the call being handled on this thread, if any
+     */
+    static void addBytes(long bytes) {
+        Call call = current.get();
+        if (call != null) {
+            call.addBytes(bytes);
+        }
+    }
+
+    static List<Map<String, Object>> snapshot() {
+        // Sorted so dumps are easy to compare
+        Map<String, Entry> sorted = new TreeMap<>(entries);
+        List<Map<String, Object>> ret = new ArrayList<>(sorted.size());
+        for (Map.Entry<String, Entry> e : sorted.entrySet()) {
+            Entry entry = e.getValue();
+            Map<String, Object> map = new HashMap<>();
+            map.put("name", e.getKey());
+            map.put("count", entry.count.get());
+            map.put("errors", entry.errors.get());
+            map.put("totalMicros", entry.totalMicros.get());
+            map.put("maxMicros", entry.maxMicros.get());
+            map.put("bytes", entry.bytes.get());
+            // Trailing empty buckets are left out
+            int length = BUCKET_COUNT;
+            while (length > 0 && entry.buckets.get(length - 1) == 0) {
+                length--;
+            }
+            List<Long> histogram = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                histogram.add(entry.buckets.get(i));
+            }
+            map.put("histogram", histogram);
+            ret.add(map);
+        }
+        return ret;
+    }
+
+    static void reset() {
+        entries.clear();
+    }
+
+    /**
+     * Write the snapshot as JSON, histogram[i] counts calls under 2^i microseconds
+     */
+    static void dump(File file) throws IOException {
+        JSONArray array = new JSONArray();
+        try {
+            for (Map<String, Object> map : snapshot()) {
+                JSONObject object = new JSONObject();
+                for (Map.Entry<String, Object> e : map.entrySet()) {
+                    object.put(e.getKey(), e.getValue() instanceof List ? new JSONArray((List<?>) e.getValue()) : e.getValue());
+                }
+                array.put(object);
+            }
+            JSONObject root = new JSONObject();
+            root.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+            root.put("sdk", Build.VERSION.SDK_INT);
+            root.put("uptimeMillis", SystemClock.elapsedRealtime());
+            root.put("calls", array);
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                writer.write(root.toString(2));
+            }
+        }
+        catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.moffatman.chan;
+
+import android.app.ActivityManager;
+import android.app.Application;
+
+import io.flutter.FlutterInjector;
+import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
+
+public class ChanApplication extends Application {
+    static final String ENGINE_ID = "main";
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        ActivityManager.RunningAppProcessInfo processInfo = new ActivityManager.RunningAppProcessInfo();
+        ActivityManager.getMyMemoryState(processInfo);
+        if (processInfo.importance != ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND) {
+            // Started for a push message or similar, don't spin up the whole app
+            return;
+        }
+        FlutterInjector.instance().flutterLoader().startInitialization(this);
+        // The engine needs the shell args now, it's one small file
+        FlutterEngine engine = new FlutterEngine(this, LaunchConfig.get(this).getShellArgs());
+        // Dart is started by MainActivity once its channels are registered, otherwise startup calls can miss them
+        FlutterEngineCache.getInstance().put(ENGINE_ID, engine);
+    }
+}
@@ -0,0 +1,99 @@
+package com.moffatman.chan;
+
+import android.content.ClipDescription;
+import android.content.ClipboardManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Keeps track of whether the clipboard has an image, and pushes changes over an EventChannel
+ * Each clip is only looked at once, when it changes
+ */
+class ClipboardMonitor implements ClipboardManager.OnPrimaryClipChangedListener, EventChannel.StreamHandler {
+    private final ClipboardManager clipboardManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // One at a time, so results come out in order
+    private final Executor executor = Executors.newSingleThreadExecutor();
+    private EventChannel.EventSink events;
+    private volatile Boolean containsImage;
+    private volatile boolean listening = false;
+
+    ClipboardMonitor(ClipboardManager clipboardManager) {
+        this.clipboardManager = clipboardManager;
+    }
+
+    /**
+     * Only looks at the description, reading the clip itself shows a "pasted from" toast on Android 12+
+     */
+    private boolean classify() {
+        ClipDescription description = clipboardManager.getPrimaryClipDescription();
+        // Providers put the type of content URIs in the description
+        return description != null && description.hasMimeType("image/*");
+    }
+
+    /**
+     * Only does IPC if nobody is listening for changes, or the first change hasn't been looked at yet
+     */
+    boolean doesContainImage() {
+        Boolean cached = containsImage;
+        if (listening && cached != null) {
+            return cached;
+        }
+        return classify();
+    }
+
+    private void update() {
+        boolean newContainsImage;
+        try {
+            newContainsImage = classify();
+        }
+        catch (SecurityException e) {
+            // Not allowed to read it while in the background
+            Log.w("ClipboardMonitor", "Could not read clipboard", e);
+            return;
+        }
+        containsImage = newContainsImage;
+        mainHandler.post(() -> {
+            if (events != null) {
+                events.success(newContainsImage);
+            }
+        });
+    }
+
+    @Override
+    public void onPrimaryClipChanged() {
+        // Still IPC, keep it off the main thread
+        executor.execute(this::update);
+    }
+
+    /**
+     * Changes made while we were in the background aren't reported, and can't be read until we have focus
+     */
+    void onWindowFocused() {
+        if (listening) {
+            onPrimaryClipChanged();
+        }
+    }
+
+    @Override
+    public void onListen(Object arguments, EventChannel.EventSink events) {
+        this.events = events;
+        listening = true;
+        clipboardManager.addPrimaryClipChangedListener(this);
+        onPrimaryClipChanged();
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+        clipboardManager.removePrimaryClipChangedListener(this);
+        listening = false;
+        containsImage = null;
+        events = null;
+    }
+}
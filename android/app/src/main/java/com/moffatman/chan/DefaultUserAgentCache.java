@@ -0,0 +1,99 @@
+package com.moffatman.chan;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * WebSettings.getDefaultUserAgent loads the whole WebView provider, which is slow on startup
+ * So keep the last one around, and only ask again after WebView is updated
+ */
+class DefaultUserAgentCache {
+    private static final String PREFS = "defaultUserAgent";
+    private static final String KEY_USER_AGENT = "userAgent";
+    private static final String KEY_WEBVIEW_VERSION = "webViewVersion";
+    private final Context context;
+    // WebView can only be updated by restarting us, so only check once
+    private final AtomicBoolean checkedForUpdate = new AtomicBoolean(false);
+
+    DefaultUserAgentCache(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    private SharedPreferences getPrefs() {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Doesn't load WebView, but still IPC
+     * @return null if we can't tell which WebView is installed
+     */
+    private static String getWebViewVersion() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return null;
+        }
+        PackageInfo info = WebView.getCurrentWebViewPackage();
+        if (info == null) {
+            return null;
+        }
+        long versionCode = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? info.getLongVersionCode() : info.versionCode;
+        return info.packageName + ":" + versionCode;
+    }
+
+    private String refresh(String webViewVersion) {
+        String userAgent = WebSettings.getDefaultUserAgent(context);
+        getPrefs().edit()
+                .putString(KEY_USER_AGENT, userAgent)
+                .putString(KEY_WEBVIEW_VERSION, webViewVersion)
+                .apply();
+        return userAgent;
+    }
+
+    private boolean isStale(SharedPreferences prefs, String webViewVersion) {
+        return webViewVersion == null || !webViewVersion.equals(prefs.getString(KEY_WEBVIEW_VERSION, null));
+    }
+
+    private void refreshInBackground() {
+        if (!checkedForUpdate.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(() -> {
+            try {
+                String webViewVersion = getWebViewVersion();
+                if (isStale(getPrefs(), webViewVersion)) {
+                    refresh(webViewVersion);
+                }
+            }
+            catch (Exception e) {
+                Log.w("DefaultUserAgentCache", "Failed to refresh", e);
+            }
+        }, "DefaultUserAgentCache").start();
+    }
+
+    /**
+     * Check for a WebView update early, so it's ready by the time it's asked for
+     */
+    void prewarm() {
+        refreshInBackground();
+    }
+
+    /**
+     * Returns the stored user agent straight away if there is one
+     * Any update is picked up in the background, and returned next time
+     */
+    String get() {
+        String stored = getPrefs().getString(KEY_USER_AGENT, null);
+        if (stored == null) {
+            // First time, have to wait for it
+            return refresh(getWebViewVersion());
+        }
+        refreshInBackground();
+        return stored;
+    }
+}
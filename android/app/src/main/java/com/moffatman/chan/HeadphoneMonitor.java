@@ -0,0 +1,92 @@
+package com.moffatman.chan;
+
+import android.media.AudioDeviceCallback;
+import android.media.AudioDeviceInfo;
+import android.media.AudioManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Arrays;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Keeps track of whether audio is going to headphones, and pushes changes over an EventChannel
+ */
+class HeadphoneMonitor extends AudioDeviceCallback implements EventChannel.StreamHandler {
+    private final AudioManager audioManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private EventChannel.EventSink events;
+    private volatile boolean pluggedIn;
+    private volatile boolean listening = false;
+
+    HeadphoneMonitor(AudioManager audioManager) {
+        this.audioManager = audioManager;
+    }
+
+    private static boolean isHeadphones(AudioDeviceInfo device) {
+        switch (device.getType()) {
+            case AudioDeviceInfo.TYPE_WIRED_HEADSET:
+            case AudioDeviceInfo.TYPE_WIRED_HEADPHONES:
+            case AudioDeviceInfo.TYPE_BLUETOOTH_A2DP:
+            case AudioDeviceInfo.TYPE_BLUETOOTH_SCO:
+                return true;
+        }
+        return false;
+    }
+
+    private boolean query() {
+        return Arrays.stream(audioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS)).anyMatch(HeadphoneMonitor::isHeadphones);
+    }
+
+    /**
+     * Only does IPC if nobody is listening for changes
+     */
+    boolean arePluggedIn() {
+        if (listening) {
+            return pluggedIn;
+        }
+        return query();
+    }
+
+    private void update() {
+        boolean newPluggedIn = query();
+        if (newPluggedIn != pluggedIn) {
+            pluggedIn = newPluggedIn;
+            if (events != null) {
+                events.success(pluggedIn);
+            }
+        }
+    }
+
+    @Override
+    public void onAudioDevicesAdded(AudioDeviceInfo[] addedDevices) {
+        if (Arrays.stream(addedDevices).anyMatch(HeadphoneMonitor::isHeadphones)) {
+            update();
+        }
+    }
+
+    @Override
+    public void onAudioDevicesRemoved(AudioDeviceInfo[] removedDevices) {
+        if (Arrays.stream(removedDevices).anyMatch(HeadphoneMonitor::isHeadphones)) {
+            update();
+        }
+    }
+
+    @Override
+    public void onListen(Object arguments, EventChannel.EventSink events) {
+        this.events = events;
+        pluggedIn = query();
+        listening = true;
+        events.success(pluggedIn);
+        // This gets called with the current devices straight away, update() will ignore that
+        audioManager.registerAudioDeviceCallback(this, mainHandler);
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+        audioManager.unregisterAudioDeviceCallback(this);
+        listening = false;
+        events = null;
+    }
+}
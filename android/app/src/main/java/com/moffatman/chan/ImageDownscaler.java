@@ -0,0 +1,163 @@
+package com.moffatman.chan;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shrinks images natively, so a full size bitmap never has to be made on either side
+ * Decodes straight to roughly the right size with inSampleSize, then scales exactly
+ */
+class ImageDownscaler {
+    private static final int INITIAL_QUALITY = 90;
+    private static final int MINIMUM_QUALITY = 50;
+    private static final int QUALITY_STEP = 10;
+    // Shrink by this much more when lowering quality isn't enough
+    private static final float EXTRA_SCALE_STEP = 0.75f;
+    private static final int MAX_EXTRA_SCALE_STEPS = 4;
+
+    private ImageDownscaler() {
+
+    }
+
+    private static int getRotation(File source) {
+        try {
+            switch (new ExifInterface(source.getPath()).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+            }
+        }
+        catch (IOException e) {
+            // Not every format has EXIF
+        }
+        return 0;
+    }
+
+    /**
+     * Largest power of two which still leaves it at least maxDimension
+     */
+    static int calculateInSampleSize(int width, int height, int maxDimension) {
+        int sampleSize = 1;
+        while (Math.max(width, height) / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat getCompressFormat(String format) {
+        switch (format) {
+            case "png":
+                return Bitmap.CompressFormat.PNG;
+            case "webp":
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+            default:
+                return Bitmap.CompressFormat.JPEG;
+        }
+    }
+
+    private static void write(Bitmap bitmap, Bitmap.CompressFormat format, int quality, File destination) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(destination)) {
+            if (!bitmap.compress(format, quality, stream)) {
+                throw new IOException("Failed to encode " + destination);
+            }
+        }
+    }
+
+    /**
+     * @param maxDimension longest side allowed, 0 for no limit
+     * @param maxBytes size allowed, 0 for no limit. PNG can only get there by shrinking.
+     * @param format "jpeg", "webp" or "png"
+     * @return path, mimeType, width and height of a new file in destinationDir, or null if source already fits
+     */
+    static Map<String, Object> downscale(File source, File destinationDir, int maxDimension, long maxBytes, String format) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source.getPath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Could not decode " + source);
+        }
+        boolean tooLarge = maxDimension > 0 && Math.max(bounds.outWidth, bounds.outHeight) > maxDimension;
+        boolean tooBig = maxBytes > 0 && source.length() > maxBytes;
+        if (!tooLarge && !tooBig) {
+            return null;
+        }
+        int targetDimension = maxDimension > 0 ? Math.min(maxDimension, Math.max(bounds.outWidth, bounds.outHeight)) : Math.max(bounds.outWidth, bounds.outHeight);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = calculateInSampleSize(bounds.outWidth, bounds.outHeight, targetDimension);
+        Bitmap sampled = BitmapFactory.decodeFile(source.getPath(), options);
+        if (sampled == null) {
+            throw new IOException("Could not decode " + source);
+        }
+        int rotation = getRotation(source);
+        Bitmap.CompressFormat compressFormat = getCompressFormat(format);
+        String extension = format.equals("png") ? "png" : (format.equals("webp") ? "webp" : "jpg");
+        destinationDir.mkdirs();
+        File destination = File.createTempFile("downscaled", "." + extension, destinationDir);
+        Bitmap scaled = null;
+        boolean succeeded = false;
+        try {
+            for (int step = 0; step <= MAX_EXTRA_SCALE_STEPS; step++) {
+                float scale = (targetDimension * (float) Math.pow(EXTRA_SCALE_STEP, step)) / Math.max(sampled.getWidth(), sampled.getHeight());
+                Matrix matrix = new Matrix();
+                if (scale < 1) {
+                    matrix.postScale(scale, scale);
+                }
+                if (rotation != 0) {
+                    // Re-encoding drops EXIF, so apply it
+                    matrix.postRotate(rotation);
+                }
+                if (scaled != null && scaled != sampled) {
+                    scaled.recycle();
+                }
+                scaled = matrix.isIdentity() ? sampled : Bitmap.createBitmap(sampled, 0, 0, sampled.getWidth(), sampled.getHeight(), matrix, true);
+                if (compressFormat == Bitmap.CompressFormat.PNG) {
+                    write(scaled, compressFormat, 100, destination);
+                }
+                else {
+                    for (int quality = INITIAL_QUALITY; quality >= MINIMUM_QUALITY; quality -= QUALITY_STEP) {
+                        write(scaled, compressFormat, quality, destination);
+                        if (maxBytes <= 0 || destination.length() <= maxBytes) {
+                            break;
+                        }
+                    }
+                }
+                if (maxBytes <= 0 || destination.length() <= maxBytes) {
+                    break;
+                }
+            }
+            if (maxBytes > 0 && destination.length() > maxBytes) {
+                throw new IOException("Could not get " + source + " under " + maxBytes + " bytes");
+            }
+            Map<String, Object> ret = new HashMap<>();
+            ret.put("path", destination.getPath());
+            ret.put("mimeType", compressFormat == Bitmap.CompressFormat.PNG ? "image/png" : (format.equals("webp") ? "image/webp" : "image/jpeg"));
+            ret.put("width", scaled.getWidth());
+            ret.put("height", scaled.getHeight());
+            succeeded = true;
+            return ret;
+        }
+        finally {
+            if (!succeeded) {
+                // Including OutOfMemoryError
+                destination.delete();
+            }
+            if (scaled != null && scaled != sampled) {
+                scaled.recycle();
+            }
+            sampled.recycle();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.moffatman.chan;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import io.flutter.embedding.engine.FlutterShellArgs;
+
+/**
+ * Settings which are needed before Flutter starts
+ * Kept together in one file so that it can be loaded in one go
+ */
+class LaunchConfig {
+    private static final String PREFS = "launchConfig";
+    private static final String KEY_IMPELLER = "impeller";
+    private static final String KEY_LEGACY_STATUS_BARS = "legacyStatusBars";
+    private static final String KEY_MIGRATED = "migrated";
+    private static LaunchConfig instance;
+    private final SharedPreferences prefs;
+
+    private LaunchConfig(SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    private static LaunchConfig read(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        if (!prefs.getBoolean(KEY_MIGRATED, false)) {
+            // These used to be in separate files
+            prefs.edit()
+                    .putBoolean(KEY_IMPELLER, context.getSharedPreferences("impeller", Context.MODE_PRIVATE).getBoolean("impeller", true))
+                    .putBoolean(KEY_LEGACY_STATUS_BARS, context.getSharedPreferences("legacyStatusBars", Context.MODE_PRIVATE).getBoolean("legacyStatusBars", false))
+                    .putBoolean(KEY_MIGRATED, true)
+                    .commit();
+        }
+        return new LaunchConfig(prefs);
+    }
+
+    /**
+     * Reads it on this thread the first time, it's needed straight away anyway
+     */
+    static synchronized LaunchConfig get(Context context) {
+        if (instance == null) {
+            instance = read(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    boolean isImpellerEnabled() {
+        return prefs.getBoolean(KEY_IMPELLER, true);
+    }
+
+    /**
+     * Only takes effect after restarting
+     */
+    void setImpellerEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_IMPELLER, enabled).commit();
+    }
+
+    boolean isLegacyStatusBarsEnabled() {
+        return prefs.getBoolean(KEY_LEGACY_STATUS_BARS, false);
+    }
+
+    void setLegacyStatusBarsEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_LEGACY_STATUS_BARS, enabled).apply();
+    }
+
+    String[] getShellArgs() {
+        return new String[]{isImpellerEnabled() ? FlutterShellArgs.ARG_ENABLE_IMPELLER : FlutterShellArgs.ARG_DISABLE_IMPELLER};
+    }
+}
@@ -2,7 +2,6 @@ package com.moffatman.chan;
 
 import android.annotation.SuppressLint;
 import android.app.AlarmManager;
-import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.ActivityNotFoundException;
 import android.content.ClipData;
@@ -10,94 +9,242 @@ import android.content.ClipboardManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.UriPermission;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
-import android.media.AudioDeviceInfo;
+import android.content.pm.ResolveInfo;
+import android.graphics.BitmapFactory;
 import android.media.AudioManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.ParcelFileDescriptor;
 import android.provider.DocumentsContract;
-import android.util.Base64;
 import android.view.WindowManager;
 import android.webkit.MimeTypeMap;
 import android.util.Log;
-import android.webkit.WebSettings;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts.CreateDocument;
 import androidx.activity.result.contract.ActivityResultContracts.OpenDocumentTree;
 import androidx.annotation.NonNull;
-import androidx.documentfile.provider.DocumentFile;
 
-import java.io.ByteArrayOutputStream;
+import com.moffatman.chan.storage.FileCopier;
+import com.moffatman.chan.storage.SaveQueue;
+import com.moffatman.chan.storage.StorageEngine;
+import com.moffatman.chan.storage.StorageException;
+
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import io.flutter.embedding.android.FlutterFragment;
 import io.flutter.embedding.android.FlutterFragmentActivity;
 import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
 import io.flutter.embedding.engine.FlutterShellArgs;
+import io.flutter.embedding.engine.dart.DartExecutor;
 import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
+import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
-import io.flutter.plugin.common.StandardMethodCodec;
 
 public class MainActivity extends FlutterFragmentActivity {
     private static final String STORAGE_CHANNEL = "com.moffatman.chan/storage";
+    private static final String SAVE_QUEUE_EVENTS_CHANNEL = "com.moffatman.chan/saveQueueEvents";
     private static final String ANDROID_CHANNEL = "com.moffatman.chan/android";
     private static final String NOTIFICATIONS_CHANNEL = "com.moffatman.chan/notifications";
     private static final String CLIPBOARD_CHANNEL = "com.moffatman.chan/clipboard";
+    private static final String CLIPBOARD_EVENTS_CHANNEL = "com.moffatman.chan/clipboardEvents";
 
     private static final String AUDIO_CHANNEL = "com.moffatman.chan/audio";
+    private static final String AUDIO_EVENTS_CHANNEL = "com.moffatman.chan/audioEvents";
     private static final String USER_AGENT_CHANNEL = "com.moffatman.chan/userAgent";
     private static final String LAUNCH_URL_CHANNEL = "com.moffatman.chan/launchUrl";
+    private static final String METRICS_CHANNEL = "com.moffatman.chan/metrics";
+    // Don't flood the channel with progress updates
+    private static final long SAVE_AS_PROGRESS_INTERVAL_NANOS = 100_000_000;
     private MethodChannel.Result folderResult;
 
-    private MethodChannel.Result saveFileAsResult;
-    private String newDocumentSourcePath;
+    // Waiting for the picker, in the order they were launched
+    private final ArrayDeque<SaveAsRequest> pendingSaveAs = new ArrayDeque<>();
+    // Being copied, by id from Dart
+    private final Map<Integer, SaveAsRequest> copyingSaveAs = new ConcurrentHashMap<>();
+    private final ExecutorService saveAsExecutor = Executors.newCachedThreadPool();
     private FlutterFragment lastFragment;
+    private PickerIconCache pickerIconCache;
+    private DefaultUserAgentCache defaultUserAgentCache;
+    private SafStorage safStorage;
+    private ClipboardMonitor clipboardMonitor;
+    private MethodChannel storageChannel;
     private static int LEGACY_STATUS_BAR_FLAGS =
             WindowManager.LayoutParams.FLAG_TRANSLUCENT_STATUS
             | WindowManager.LayoutParams.FLAG_TRANSLUCENT_NAVIGATION;
 
-    private DocumentFile fastFindFile(DocumentFile parent, String name) {
+    private static class SaveAsRequest {
+        final int id;
+        final String sourcePath;
+        final MethodChannel.Result result;
+        volatile boolean cancelled = false;
+
+        SaveAsRequest(int id, String sourcePath, MethodChannel.Result result) {
+            this.id = id;
+            this.sourcePath = sourcePath;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Runs on saveAsExecutor, a cancelled copy is deleted and returns null as if the picker was cancelled
+     */
+    private void copySaveAs(SaveAsRequest request, Uri uri) {
+        long[] lastReportedAt = {0};
+        FileCopier.Progress progress = (copied, total) -> {
+            long now = System.nanoTime();
+            if (copied == 0 || copied == total || now - lastReportedAt[0] >= SAVE_AS_PROGRESS_INTERVAL_NANOS) {
+                lastReportedAt[0] = now;
+                Map<String, Object> event = new HashMap<>();
+                event.put("id", request.id);
+                event.put("copied", copied);
+                event.put("total", total);
+                // Channel calls need to be made on the main thread
+                runOnUiThread(() -> storageChannel.invokeMethod("saveFileAsProgress", event));
+            }
+            return !request.cancelled;
+        };
         try {
-            // Android does this when saving. So we need to look for the expected name.
-            String effectiveName = name.replaceAll("[\\\\/:*?\"<>|]", "_");
-            try (Cursor cursor = getContentResolver().query(DocumentsContract.buildChildDocumentsUriUsingTree(
-                    parent.getUri(),
-                    DocumentsContract.getDocumentId(parent.getUri())
-            ), new String[]{
-                    DocumentsContract.Document.COLUMN_DOCUMENT_ID,
-                    DocumentsContract.Document.COLUMN_DISPLAY_NAME
-            }, null, null, null)) {
-                while (cursor.moveToNext()) {
-                    if (effectiveName.equals(cursor.getString(1))) {
-                        return DocumentFile.fromTreeUri(getApplicationContext(), DocumentsContract.buildDocumentUriUsingTree(parent.getUri(), cursor.getString(0)));
-                    }
-                }
+            try (SafDocumentTree.ParcelFileDescriptorSink sink = SafDocumentTree.ParcelFileDescriptorSink.open(getContentResolver(), uri)) {
+                FileCopier.copy(new File(request.sourcePath), sink, progress);
             }
+            runOnUiThread(() -> request.result.success(uri.toString()));
         }
-        catch (Exception e) {
-            Log.w("fastFindFile", "Got exception", e);
+        catch (InterruptedIOException e) {
+            try {
+                DocumentsContract.deleteDocument(getContentResolver(), uri);
+            }
+            catch (FileNotFoundException | RuntimeException deleteException) {
+                Log.w("newDocument", "Could not delete cancelled " + uri, deleteException);
+            }
+            runOnUiThread(() -> request.result.success(null));
+        }
+        catch (IOException e) {
+            runOnUiThread(() -> request.result.error("FileNotFound", e.getMessage(), null));
+        }
+        finally {
+            copyingSaveAs.remove(request.id);
         }
-        return null;
+    }
+
+    /**
+     * Stream an image from a content URI into a new file in directory
+     * @return path and mimeType of the new file, or null if it's not a recognized image
+     */
+    private Map<String, Object> copyImageUriToDirectory(Uri uri, File directory) throws IOException {
+        directory.mkdirs();
+        File tmp = File.createTempFile("clipboard", null, directory);
+        try (
+            InputStream sourceReadStream = getContentResolver().openInputStream(uri);
+            FileOutputStream destinationWriteStream = new FileOutputStream(tmp)
+        ) {
+            if (sourceReadStream == null) {
+                throw new FileNotFoundException("Could not open " + uri);
+            }
+            byte[] buffer = new byte[64 * 1024];
+            int len;
+            while ((len = sourceReadStream.read(buffer)) > 0) {
+                destinationWriteStream.write(buffer, 0, len);
+            }
+        }
+        catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        String mimeType = getContentResolver().getType(uri);
+        if (mimeType == null || !mimeType.startsWith("image/")) {
+            // Provider didn't tell us, check the header
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(tmp.getPath(), options);
+            mimeType = options.outMimeType;
+        }
+        String extension = mimeType == null ? null : MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
+        if (extension == null) {
+            tmp.delete();
+            return null;
+        }
+        File file = new File(directory, System.currentTimeMillis() + "." + extension);
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+        Map<String, Object> ret = new HashMap<>();
+        ret.put("path", file.getPath());
+        ret.put("mimeType", mimeType);
+        return ret;
+    }
+
+    /**
+     * Every save method reports errors with the same codes, so Dart can throw the same exceptions
+     */
+    private void sendSaveError(MethodChannel.Result result, String destinationDir, Exception e) {
+        if (e instanceof StorageException) {
+            result.error(((StorageException) e).code, e.getMessage(), null);
+        }
+        else if (e instanceof FileNotFoundException) {
+            safStorage.invalidateTree(Uri.parse(destinationDir));
+            result.error("FileNotFound", e.getMessage(), null);
+        }
+        else if (e instanceof SecurityException) {
+            safStorage.reloadPersistedPermissions();
+            result.error("InsufficientPermission", e.getMessage(), null);
+        }
+        else {
+            result.error("IOException", e.getMessage(), null);
+        }
+    }
+
+    /**
+     * Apply maxDimension, maxBytes and format from call, if given
+     * Falls back to the original if it can't be downscaled, it's better to upload something too big than nothing
+     * @return the new image, or the original if it already fit or couldn't be downscaled
+     */
+    private static Map<String, Object> downscaleIfNeeded(MethodCall call, Map<String, Object> image, File destinationDir) {
+        Integer maxDimension = call.argument("maxDimension");
+        Number maxBytes = call.argument("maxBytes");
+        if ((maxDimension == null && maxBytes == null) || "image/gif".equals(image.get("mimeType"))) {
+            // Would lose the animation
+            return image;
+        }
+        String format = call.argument("format");
+        if (format == null) {
+            // Keep it the same, unless it's something that can't be re-encoded
+            format = "image/png".equals(image.get("mimeType")) ? "png" : ("image/webp".equals(image.get("mimeType")) ? "webp" : "jpeg");
+        }
+        File original = new File((String) image.get("path"));
+        Map<String, Object> downscaled = null;
+        try {
+            downscaled = ImageDownscaler.downscale(original, destinationDir, maxDimension == null ? 0 : maxDimension, maxBytes == null ? 0 : maxBytes.longValue(), format);
+        }
+        catch (IOException | RuntimeException | OutOfMemoryError e) {
+            Log.w("MainActivity", "Could not downscale " + original, e);
+        }
+        finally {
+            if (downscaled != null) {
+                // Replaced, nothing else will clean it up
+                original.delete();
+            }
+        }
+        return downscaled == null ? image : downscaled;
     }
 
     private static void setFragmentArgsForImpeller(FlutterFragment fragment, boolean impeller) {
@@ -127,18 +274,39 @@ public class MainActivity extends FlutterFragmentActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
-        if (getSharedPreferences("legacyStatusBars", Context.MODE_PRIVATE).getBoolean("legacyStatusBars", false)) {
+        if (LaunchConfig.get(this).isLegacyStatusBarsEnabled()) {
             // These are "deprecated" but seem to be needed to use transparent bars
             getWindow().addFlags(LEGACY_STATUS_BAR_FLAGS);
         }
+        defaultUserAgentCache = new DefaultUserAgentCache(this);
+        defaultUserAgentCache.prewarm();
+        safStorage = SafStorage.get(this);
         super.onCreate(savedInstanceState);
     }
 
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+        if (hasFocus && clipboardMonitor != null) {
+            clipboardMonitor.onWindowFocused();
+        }
+    }
+
+    @Override
+    public String getCachedEngineId() {
+        String cachedEngineId = super.getCachedEngineId();
+        if (cachedEngineId == null && FlutterEngineCache.getInstance().contains(ChanApplication.ENGINE_ID)) {
+            return ChanApplication.ENGINE_ID;
+        }
+        return cachedEngineId;
+    }
+
     @NonNull
     @Override
     protected FlutterFragment createFlutterFragment() {
         FlutterFragment fragment = super.createFlutterFragment();
-        setFragmentArgsForImpeller(fragment, getSharedPreferences("impeller", Context.MODE_PRIVATE).getBoolean("impeller", true));
+        // Only matters if we didn't get the prewarmed engine
+        setFragmentArgsForImpeller(fragment, LaunchConfig.get(this).isImpellerEnabled());
         lastFragment = fragment;
         return fragment;
     }
@@ -165,6 +333,7 @@ public class MainActivity extends FlutterFragmentActivity {
                     uri,
                     Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION
                 );
+                safStorage.reloadPersistedPermissions();
                 if (folderResult != null) {
                     folderResult.success(uri.toString());
                     return;
@@ -200,324 +369,269 @@ public class MainActivity extends FlutterFragmentActivity {
                 return intent;
             }
         }, uri -> {
-            if (saveFileAsResult == null) {
-                Log.e("newDocument", "saveFileAsResult was null!");
+            SaveAsRequest request = pendingSaveAs.poll();
+            if (request == null) {
+                Log.e("newDocument", "No pending saveFileAs request!");
                 return;
             }
             if (uri == null) {
-                saveFileAsResult.success(null);
+                request.result.success(null);
                 return;
             }
+            copyingSaveAs.put(request.id, request);
+            // Could be a large video, too slow for the main thread
+            saveAsExecutor.execute(() -> copySaveAs(request, uri));
+        });
+        super.configureFlutterEngine(flutterEngine);
+        BinaryMessenger messenger = flutterEngine.getDartExecutor().getBinaryMessenger();
+        MethodDispatcher storage = new MethodDispatcher();
+        storage.ui("pickDirectory", (call, result) -> {
+            safStorage.clear();
+            this.folderResult = result;
+            getFolder.launch(Uri.fromFile(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS)));
+        });
+        storage.background("saveFile", (call, result) -> {
             try {
-                ParcelFileDescriptor destinationFileDescriptor = getContentResolver().openFileDescriptor(uri, "w");
-                File sourceFile = new File(newDocumentSourcePath);
-                FileOutputStream destinationWriteStream = new FileOutputStream(destinationFileDescriptor.getFileDescriptor());
-                FileInputStream sourceReadStream = new FileInputStream(sourceFile);
-                byte[] buffer = new byte[4096];
-                int len;
-                while ((len = sourceReadStream.read(buffer, 0, 4096)) > 0) {
-                    destinationWriteStream.write(buffer, 0, len);
+                String sourcePath = call.argument("sourcePath");
+                String destinationDir = call.argument("destinationDir");
+                List<String> destinationSubfolders = call.argument("destinationSubfolders");
+                String destinationName = call.argument("destinationName");
+                // Only for saving attachments, anything else needs the exact name it asked for
+                boolean deduplicate = Boolean.TRUE.equals(call.argument("deduplicate"));
+                SafStorage.Destination dir = safStorage.resolveDestination(Uri.parse(destinationDir), destinationSubfolders);
+                StorageEngine.SavedFile saved = safStorage.saveFile(dir, sourcePath, destinationName, deduplicate);
+                if (deduplicate) {
+                    Map<String, Object> ret = new HashMap<>();
+                    ret.put("name", saved.name);
+                    ret.put("deduplicated", saved.deduplicated);
+                    result.success(ret);
                 }
-                destinationWriteStream.close();
-                destinationFileDescriptor.close();
-                sourceReadStream.close();
-                saveFileAsResult.success(uri.toString());
+                else {
+                    result.success(saved.name);
+                }
+            }
+            catch (StorageException | IOException | SecurityException e) {
+                sendSaveError(result, call.argument("destinationDir"), e);
+            }
+        });
+        storage.background("enqueueSaves", (call, result) -> {
+            String destinationDir = call.argument("destinationDir");
+            List<String> destinationSubfolders = call.argument("destinationSubfolders");
+            List<String> sourcePaths = call.argument("sourcePaths");
+            List<String> destinationNames = call.argument("destinationNames");
+            try {
+                // Fail now if the destination is gone, rather than once per job
+                safStorage.resolveDestination(Uri.parse(destinationDir), destinationSubfolders);
+                result.success(safStorage.getSaveQueue().enqueue(destinationDir, destinationSubfolders, sourcePaths, destinationNames));
+            }
+            catch (StorageException | IOException | SecurityException e) {
+                sendSaveError(result, destinationDir, e);
+            }
+        });
+        storage.background("getPendingSaves", (call, result) -> {
+            List<Long> ids = new ArrayList<>();
+            for (SaveQueue.Job job : safStorage.getSaveQueue().getPending()) {
+                ids.add(job.id);
+            }
+            result.success(ids);
+        });
+        storage.background("isGallerySaveSupported", (call, result) -> result.success(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q));
+        storage.background("saveToGallery", (call, result) -> {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                result.error("Unsupported", "Saving to the gallery needs Android 10", null);
+                return;
+            }
+            String album = call.argument("album");
+            List<Map<String, String>> files = call.argument("files");
+            List<MediaStoreSaver.Item> items = new ArrayList<>(files.size());
+            for (Map<String, String> file : files) {
+                items.add(new MediaStoreSaver.Item(file.get("sourcePath"), file.get("destinationName")));
+            }
+            result.success(new MediaStoreSaver(getContentResolver()).save(album, items));
+        });
+        storage.ui("saveFileAs", (call, result) -> {
+            Integer id = call.argument("id");
+            String destinationName = call.argument("destinationName");
+            pendingSaveAs.add(new SaveAsRequest(id == null ? -1 : id, call.argument("sourcePath"), result));
+            newDocument.launch(destinationName);
+        });
+        storage.background("cancelSaveFileAs", (call, result) -> {
+            int id = call.argument("id");
+            SaveAsRequest request = copyingSaveAs.get(id);
+            if (request != null) {
+                request.cancelled = true;
+            }
+            result.success(null);
+        });
+        storage.background("downscaleImage", (call, result) -> {
+            String sourcePath = call.argument("sourcePath");
+            String destinationDir = call.argument("destinationDir");
+            Integer maxDimension = call.argument("maxDimension");
+            Number maxBytes = call.argument("maxBytes");
+            String format = call.argument("format");
+            try {
+                result.success(ImageDownscaler.downscale(new File(sourcePath), new File(destinationDir), maxDimension == null ? 0 : maxDimension, maxBytes == null ? 0 : maxBytes.longValue(), format == null ? "jpeg" : format));
             }
             catch (IOException e) {
-                saveFileAsResult.error("FileNotFound", e.getMessage(), null);
+                result.error("IOException", e.getMessage(), null);
             }
         });
-        super.configureFlutterEngine(flutterEngine);
-        BinaryMessenger.TaskQueue storageTaskQueue = flutterEngine.getDartExecutor().getBinaryMessenger().makeBackgroundTaskQueue();
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(), STORAGE_CHANNEL, StandardMethodCodec.INSTANCE, storageTaskQueue).setMethodCallHandler(
-                (call, result) -> {
-                    if (call.method.equals("pickDirectory")) {
-                        System.out.println(getContentResolver().getPersistedUriPermissions());
-                        this.folderResult = result;
-                        getFolder.launch(Uri.fromFile(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS)));
-                    }
-                    else if (call.method.equals("saveFile")) {
-                        try {
-                            String sourcePath = call.argument("sourcePath");
-                            String destinationDir = call.argument("destinationDir");
-                            List<String> destinationSubfolders = call.argument("destinationSubfolders");
-                            String destinationName = call.argument("destinationName");
-                            Uri destination = Uri.parse(destinationDir);
-                            boolean sufficientPermission = false;
-                            for (UriPermission permission : getContentResolver().getPersistedUriPermissions()) {
-                                if (permission.getUri().equals(destination)) {
-                                    sufficientPermission = permission.isWritePermission() && permission.isReadPermission();
-                                }
-                            }
-                            if (!sufficientPermission) {
-                                result.error("InsufficientPermission", "Permissions not enough or have expired", null);
-                                return;
-                            }
-                            DocumentFile dir = DocumentFile.fromTreeUri(this, destination);
-                            if (!dir.exists()) {
-                                result.error("DirectoryNotFound", "Supplied directory does not exist", null);
-                                return;
-                            }
-                            for (String subdirName : destinationSubfolders) {
-                                DocumentFile subdir = fastFindFile(dir, subdirName);
-                                if (subdir != null && subdir.isDirectory()) {
-                                    dir = subdir;
-                                }
-                                else {
-                                    dir = dir.createDirectory(subdirName);
-                                }
-                            }
-                            int dotPos = destinationName.lastIndexOf('.');
-                            if (dotPos == -1) {
-                                result.error("FilenameProblem", "Supplied filename has no file extension", null);
-                            }
-                            String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(destinationName.substring(dotPos + 1));
-                            String nameWithoutExtension = destinationName.substring(0, dotPos);
-                            DocumentFile file = dir.createFile(mimeType, nameWithoutExtension);
-                            // Android fails to create a unique filename if
-                            // there is already ['name.ext', 'name (1).ext', ..., 'name (32).ext']
-                            for (int i = 33; file == null; i += 32) {
-                                // Although this creates ['name (33).ext', 'name (33) (1).ext', ... 'name (65).ext'],
-                                // it's better than a crash
-                                file = dir.createFile(mimeType, String.format("%s (%d)", nameWithoutExtension, i));
-                            }
-                            ParcelFileDescriptor destinationFileDescriptor = getContentResolver().openFileDescriptor(file.getUri(), "w");
-                            File sourceFile = new File(sourcePath);
-                            FileOutputStream destinationWriteStream = new FileOutputStream(destinationFileDescriptor.getFileDescriptor());
-                            FileInputStream sourceReadStream = new FileInputStream(sourceFile);
-                            byte[] buffer = new byte[4096];
-                            int len;
-                            while ((len = sourceReadStream.read(buffer, 0, 4096)) > 0) {
-                                destinationWriteStream.write(buffer, 0, len);
-                            }
-                            destinationWriteStream.close();
-                            destinationFileDescriptor.close();
-                            sourceReadStream.close();
-                            result.success(file.getName());
-                        }
-                        catch (FileNotFoundException e) {
-                            result.error("FileNotFound", e.getMessage(), null);
-                        }
-                        catch (IOException e) {
-                            result.error("IOException", e.getMessage(), null);
-                        }
-                    }
-                    else if (call.method.equals("saveFileAs")) {
-                        this.saveFileAsResult = result;
-                        this.newDocumentSourcePath = call.argument("sourcePath");
-                        String destinationName = call.argument("destinationName");
-                        newDocument.launch(destinationName);
-                    }
-                    else if (call.method.equals("getPickerList")) {
-                        PackageManager pm = getApplicationContext().getPackageManager();
-                        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
-                        intent.addCategory(Intent.CATEGORY_OPENABLE);
-                        intent.setType("image/*,video/*");
-                        result.success(pm.queryIntentActivities(intent, 0).stream().map(resolveInfo -> {
-                            Drawable icon = resolveInfo.loadIcon(pm);
-                            Bitmap bitmap = null;
-                            if (icon instanceof BitmapDrawable) {
-                                bitmap = ((BitmapDrawable)icon).getBitmap();
-                            }
-                            if (bitmap == null) {
-                                if (icon.getIntrinsicWidth() <= 0 || icon.getIntrinsicHeight() <= 0) {
-                                    bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
-                                }
-                                else {
-                                    bitmap = Bitmap.createBitmap(icon.getIntrinsicWidth(), icon.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
-                                }
-                                Canvas canvas = new Canvas(bitmap);
-                                icon.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-                                icon.draw(canvas);
-                            }
-                            ByteArrayOutputStream os = new ByteArrayOutputStream();
-                            bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
-                            return Map.of(
-                                    "package", resolveInfo.activityInfo.packageName,
-                                    "label", pm.getApplicationLabel(resolveInfo.activityInfo.applicationInfo).toString(),
-                                    "icon", Base64.encodeToString(os.toByteArray(), Base64.NO_WRAP)
-                            );
-                        }).collect(Collectors.toList()));
-                    }
-                    else {
-                        result.notImplemented();
-                    }
-                }
-        );
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(), ANDROID_CHANNEL).setMethodCallHandler(
-                (call, result) -> {
-                    if (call.method.equals("getImpeller")) {
-                        result.success(getSharedPreferences("impeller", Context.MODE_PRIVATE).getBoolean("impeller", true));
-                    }
-                    else if (call.method.equals("setImpeller")) {
-                        SharedPreferences.Editor editor = getSharedPreferences("impeller", Context.MODE_PRIVATE).edit();
-                        boolean enabled = call.argument("enabled");
-                        editor.putBoolean("impeller", enabled);
-                        editor.commit();
-                        result.success(null);
-                        finish();
-                        android.os.Process.killProcess(android.os.Process.myPid());
-                    }
-                    else if (call.method.equals("getLegacyStatusBars")) {
-                        result.success(getSharedPreferences("legacyStatusBars", Context.MODE_PRIVATE).getBoolean("legacyStatusBars", false));
-                    }
-                    else if (call.method.equals("setLegacyStatusBars")) {
-                        SharedPreferences.Editor editor = getSharedPreferences("legacyStatusBars", Context.MODE_PRIVATE).edit();
-                        boolean enabled = call.argument("enabled");
-                        editor.putBoolean("legacyStatusBars", enabled);
-                        editor.commit();
-                        if (enabled) {
-                            getWindow().addFlags(LEGACY_STATUS_BAR_FLAGS);
-                        }
-                        else {
-                            getWindow().clearFlags(LEGACY_STATUS_BAR_FLAGS);
-                        }
-                        result.success(null);
-                    }
-                    else if (call.method.equals("canOpenGoogleTranslate")) {
-                        try {
-                            getApplicationContext().getPackageManager().getPackageInfo("com.google.android.apps.translate", 0);
-                            result.success(true);
-                        } catch (PackageManager.NameNotFoundException e) {
-                            result.success(false);
-                        } catch (Exception e) {
-                            result.error("JAVA_EXCEPTION", e.getMessage(), null);
-                        }
-                    }
-                    else if (call.method.equals("openGoogleTranslate")) {
-                        try {
-                            Intent intent = new Intent(Intent.ACTION_PROCESS_TEXT);
-                            intent.setType("text/plain");
-                            intent.putExtra(Intent.EXTRA_PROCESS_TEXT, (String) call.argument("text"));
-                            intent.putExtra(Intent.EXTRA_PROCESS_TEXT_READONLY, true);
-                            startActivity(intent);
-                            result.success(null);
-                        } catch (Exception e) {
-                            result.error("JAVA_EXCEPTION", e.getMessage(), null);
-                        }
-                    }
-                    else {
-                        result.notImplemented();
-                    }
-                }
-        );
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(), NOTIFICATIONS_CHANNEL).setMethodCallHandler(
-                (call, result) -> {
-                    if (call.method.equals("clearNotificationsWithProperties")) {
-                        // Seems to be no way to find the notifications after they are posted
-                        // Unfortunately have to cancel everything
-                        NotificationManager nm = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
-                        nm.cancelAll();
-                        result.success(null);
+        storage.background("getPickerList", (call, result) -> {
+            PackageManager pm = getApplicationContext().getPackageManager();
+            Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType("image/*,video/*");
+            List<ResolveInfo> resolveInfos = pm.queryIntentActivities(intent, 0);
+            if (pickerIconCache == null) {
+                pickerIconCache = new PickerIconCache(getApplicationContext());
+            }
+            List<byte[]> icons = pickerIconCache.getIcons(resolveInfos);
+            List<Map<String, Object>> pickers = new ArrayList<>(resolveInfos.size());
+            for (int i = 0; i < resolveInfos.size(); i++) {
+                ResolveInfo resolveInfo = resolveInfos.get(i);
+                Map<String, Object> picker = new HashMap<>();
+                picker.put("package", resolveInfo.activityInfo.packageName);
+                picker.put("label", pm.getApplicationLabel(resolveInfo.activityInfo.applicationInfo).toString());
+                picker.put("icon", icons.get(i));
+                pickers.add(picker);
+            }
+            result.success(pickers);
+        });
+        storageChannel = storage.attach(messenger, STORAGE_CHANNEL);
+        new EventChannel(messenger, SAVE_QUEUE_EVENTS_CHANNEL).setStreamHandler(safStorage.saveQueueEvents);
+        new MethodDispatcher()
+                .background("getImpeller", (call, result) -> {
+                    result.success(LaunchConfig.get(this).isImpellerEnabled());
+                })
+                .ui("setImpeller", (call, result) -> {
+                    boolean enabled = call.argument("enabled");
+                    LaunchConfig.get(this).setImpellerEnabled(enabled);
+                    result.success(null);
+                    finish();
+                    android.os.Process.killProcess(android.os.Process.myPid());
+                })
+                .background("getLegacyStatusBars", (call, result) -> {
+                    result.success(LaunchConfig.get(this).isLegacyStatusBarsEnabled());
+                })
+                .ui("setLegacyStatusBars", (call, result) -> {
+                    boolean enabled = call.argument("enabled");
+                    LaunchConfig.get(this).setLegacyStatusBarsEnabled(enabled);
+                    if (enabled) {
+                        getWindow().addFlags(LEGACY_STATUS_BAR_FLAGS);
                     }
                     else {
-                        result.notImplemented();
+                        getWindow().clearFlags(LEGACY_STATUS_BAR_FLAGS);
                     }
-                }
-        );
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(), CLIPBOARD_CHANNEL).setMethodCallHandler(
-                (call, result) -> {
+                    result.success(null);
+                })
+                .background("canOpenGoogleTranslate", (call, result) -> {
                     try {
-                        if (call.method.equals("doesClipboardContainImage")) {
-                            ClipboardManager cm = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
-                            ClipData primaryClip = cm.getPrimaryClip();
-                            if (primaryClip != null) {
-                                ClipData.Item item = primaryClip.getItemAt(0);
-                                if (item.getUri() != null) {
-                                    String[] parts = item.getUri().toString().split("\\.");
-                                    String ext = parts[parts.length - 1];
-                                    result.success(ext.equals("jpg") || ext.equals("jpeg") || ext.equals("png") || ext.equals("gif"));
-                                    return;
-                                }
-                            }
-                            result.success(null);
-                        } else if (call.method.equals("getClipboardImage")) {
-                            ClipboardManager cm = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
-                            ClipData primaryClip = cm.getPrimaryClip();
-                            if (primaryClip != null) {
-                                ClipData.Item item = primaryClip.getItemAt(0);
-                                if (item.getUri() != null) {
-                                    try {
-                                        InputStream stream = getContentResolver().openInputStream(item.getUri());
-                                        byte[] data = new byte[stream.available()];
-                                        stream.read(data);
-                                        result.success(data);
-                                    } catch (IOException e) {
-                                        result.error("FILE_ERROR", "Could not open file for reading", null);
-                                    }
-                                    return;
+                        getApplicationContext().getPackageManager().getPackageInfo("com.google.android.apps.translate", 0);
+                        result.success(true);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        result.success(false);
+                    }
+                })
+                .ui("openGoogleTranslate", (call, result) -> {
+                    Intent intent = new Intent(Intent.ACTION_PROCESS_TEXT);
+                    intent.setType("text/plain");
+                    intent.putExtra(Intent.EXTRA_PROCESS_TEXT, (String) call.argument("text"));
+                    intent.putExtra(Intent.EXTRA_PROCESS_TEXT_READONLY, true);
+                    startActivity(intent);
+                    result.success(null);
+                })
+                .attach(messenger, ANDROID_CHANNEL);
+        new MethodDispatcher()
+                .ui("postNotification", (call, result) -> {
+                    String tag = NotificationRegistry.makeTag(call.argument("userId"), call.argument("type"), call.argument("board"), call.argument("threadId"));
+                    NotificationRegistry.get(this).post(tag, call.argument("group"), call.argument("title"), call.argument("body"), call.argument("payload"));
+                    result.success(null);
+                })
+                .ui("clearNotificationsWithProperties", (call, result) -> {
+                    NotificationRegistry.get(this).clear(call.argument("userId"), call.argument("type"), call.argument("board"), call.argument("threadId"));
+                    result.success(null);
+                })
+                .attach(messenger, NOTIFICATIONS_CHANNEL);
+        clipboardMonitor = new ClipboardMonitor((ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE));
+        new EventChannel(messenger, CLIPBOARD_EVENTS_CHANNEL).setStreamHandler(clipboardMonitor);
+        new MethodDispatcher()
+                .background("doesClipboardContainImage", (call, result) -> {
+                    result.success(clipboardMonitor.doesContainImage());
+                })
+                .background("getClipboardImageFile", (call, result) -> {
+                    String destinationDir = call.argument("destinationDir");
+                    ClipboardManager cm = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
+                    ClipData primaryClip = cm.getPrimaryClip();
+                    if (primaryClip != null) {
+                        ClipData.Item item = primaryClip.getItemAt(0);
+                        if (item.getUri() != null) {
+                            try {
+                                Map<String, Object> image = copyImageUriToDirectory(item.getUri(), new File(destinationDir));
+                                if (image != null) {
+                                    image = downscaleIfNeeded(call, image, new File(destinationDir));
                                 }
+                                result.success(image);
+                            } catch (IOException e) {
+                                result.error("FILE_ERROR", "Could not open file for reading", null);
                             }
-                            result.success(null);
-                        } else {
-                            result.notImplemented();
+                            return;
                         }
                     }
-                    catch (Exception e) {
-                        result.error("JAVA_EXCEPTION", e.getMessage(), null);
-                    }
-                }
-        );
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(), AUDIO_CHANNEL).setMethodCallHandler(
-                (call, result) -> {
+                    result.success(null);
+                })
+                .attach(messenger, CLIPBOARD_CHANNEL);
+        HeadphoneMonitor headphoneMonitor = new HeadphoneMonitor((AudioManager)getSystemService(Context.AUDIO_SERVICE));
+        new EventChannel(messenger, AUDIO_EVENTS_CHANNEL).setStreamHandler(headphoneMonitor);
+        new MethodDispatcher()
+                .background("areHeadphonesPluggedIn", (call, result) -> {
+                    result.success(headphoneMonitor.arePluggedIn());
+                })
+                .attach(messenger, AUDIO_CHANNEL);
+        new MethodDispatcher()
+                .background("getDefaultUserAgent", (call, result) -> {
+                    result.success(defaultUserAgentCache.get());
+                })
+                .attach(messenger, USER_AGENT_CHANNEL);
+        new MethodDispatcher()
+                .background("getCallMetrics", (call, result) -> {
+                    result.success(CallMetrics.snapshot());
+                })
+                .background("resetCallMetrics", (call, result) -> {
+                    CallMetrics.reset();
+                    result.success(null);
+                })
+                .background("dumpCallMetrics", (call, result) -> {
+                    File file = new File((String) call.argument("path"));
                     try {
-                        if (call.method.equals("areHeadphonesPluggedIn")) {
-                            AudioManager audioManager = (AudioManager)getSystemService(Context.AUDIO_SERVICE);
-                            result.success(Arrays.stream(audioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS)).anyMatch((device) -> {
-                                switch (device.getType()) {
-                                    case AudioDeviceInfo.TYPE_WIRED_HEADSET:
-                                    case AudioDeviceInfo.TYPE_WIRED_HEADPHONES:
-                                    case AudioDeviceInfo.TYPE_BLUETOOTH_A2DP:
-                                    case AudioDeviceInfo.TYPE_BLUETOOTH_SCO:
-                                        return true;
-                                }
-                                return false;
-                            }));
-                        } else {
-                            result.notImplemented();
-                        }
+                        CallMetrics.dump(file);
+                        result.success(file.getPath());
                     }
-                    catch (Exception e) {
-                        result.error("JAVA_EXCEPTION", e.getMessage(), null);
+                    catch (IOException e) {
+                        result.error("IOException", e.getMessage(), null);
                     }
-                }
-        );
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(), USER_AGENT_CHANNEL).setMethodCallHandler(
-                (call, result) -> {
+                })
+                .attach(messenger, METRICS_CHANNEL);
+        new MethodDispatcher()
+                .ui("launchUrl", (call, result) -> {
+                    String url = call.argument("url");
+                    // Force an actual external app, not just redirecting back to us
+                    ComponentName[] excludedComponentNames = {new ComponentName("com.moffatman.chan", "MainActivity")};
+                    Intent launchIntent =
+                            new Intent(Intent.ACTION_VIEW)
+                                    .setData(Uri.parse(url))
+                                    .putExtra(Intent.EXTRA_EXCLUDE_COMPONENTS, excludedComponentNames);
                     try {
-                        if (call.method.equals("getDefaultUserAgent")) {
-                            result.success(WebSettings.getDefaultUserAgent(getApplicationContext()));
-                        } else {
-                            result.notImplemented();
-                        }
-                    }
-                    catch (Exception e) {
-                        result.error("JAVA_EXCEPTION", e.getMessage(), null);
-                    }
-                }
-        );
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(), LAUNCH_URL_CHANNEL).setMethodCallHandler(
-                (call, result) -> {
-                    if (call.method.equals("launchUrl")) {
-                        String url = call.argument("url");
-                        // Force an actual external app, not just redirecting back to us
-                        ComponentName[] excludedComponentNames = {new ComponentName("com.moffatman.chan", "MainActivity")};
-                        Intent launchIntent =
-                                new Intent(Intent.ACTION_VIEW)
-                                        .setData(Uri.parse(url))
-                                        .putExtra(Intent.EXTRA_EXCLUDE_COMPONENTS, excludedComponentNames);
-                        try {
-                            startActivity(launchIntent);
-                        } catch (ActivityNotFoundException e) {
-                            result.success(false);
-                        }
-
-                        result.success(true);
+                        startActivity(launchIntent);
+                    } catch (ActivityNotFoundException e) {
+                        result.success(false);
+                        return;
                     }
-                    else {
-                        result.notImplemented();
-                    }
-                }
-        );
+                    result.success(true);
+                })
+                .attach(messenger, LAUNCH_URL_CHANNEL);
+        if (ChanApplication.ENGINE_ID.equals(getCachedEngineId()) && !flutterEngine.getDartExecutor().isExecutingDart()) {
+            // The prewarmed engine is left for us to start, now that every channel has a handler
+            flutterEngine.getDartExecutor().executeDartEntrypoint(DartExecutor.DartEntrypoint.createDefault());
+        }
     }
 }
@@ -0,0 +1,209 @@
+package com.moffatman.chan;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import android.webkit.MimeTypeMap;
+
+import androidx.annotation.RequiresApi;
+
+import com.moffatman.chan.storage.FileCopier;
+import com.moffatman.chan.storage.StorageEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves straight into the MediaStore image and video collections, so they are in the gallery immediately
+ * RELATIVE_PATH and IS_PENDING only exist from Q
+ * Inserts and publishes are each one batch, only the copies are done per-file
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+class MediaStoreSaver {
+    static class Item {
+        final String sourcePath;
+        final String destinationName;
+
+        Item(String sourcePath, String destinationName) {
+            this.sourcePath = sourcePath;
+            this.destinationName = destinationName;
+        }
+    }
+
+    private final ContentResolver contentResolver;
+
+    MediaStoreSaver(ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * Make it one directory under Pictures or Movies, whatever the board or thread is called
+     * @return null if there is nothing usable left
+     */
+    static String sanitizeAlbum(String album) {
+        if (album == null) {
+            return null;
+        }
+        // Separators included, so it can't nest
+        String sanitized = StorageEngine.effectiveDisplayName(album).trim();
+        if (sanitized.isEmpty() || sanitized.equals(".") || sanitized.equals("..")) {
+            return null;
+        }
+        return sanitized;
+    }
+
+    private static String getMimeType(String name) {
+        int dot = name.lastIndexOf('.');
+        String mimeType = dot < 0 ? null : MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase());
+        return mimeType == null ? "application/octet-stream" : mimeType;
+    }
+
+    private static Map<String, Object> makeError(String code, String message) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("errorCode", code);
+        result.put("errorMessage", message);
+        return result;
+    }
+
+    /**
+     * @param album null to save at the top of Pictures/Movies
+     * @return in the same order as items, with the name it got, or errorCode and errorMessage
+     */
+    List<Map<String, Object>> save(String album, List<Item> items) {
+        album = sanitizeAlbum(album);
+        List<Map<String, Object>> results = new ArrayList<>(items.size());
+        ArrayList<ContentProviderOperation> inserts = new ArrayList<>(items.size());
+        // Index into inserts, or -1 if it won't be saved
+        int[] insertIndexes = new int[items.size()];
+        Uri[] collections = new Uri[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            String mimeType = getMimeType(item.destinationName);
+            boolean isImage = mimeType.startsWith("image/");
+            if (!isImage && !mimeType.startsWith("video/")) {
+                insertIndexes[i] = -1;
+                results.add(makeError("Unsupported", "Can't save " + mimeType + " to the gallery"));
+                continue;
+            }
+            String relativePath = isImage ? Environment.DIRECTORY_PICTURES : Environment.DIRECTORY_MOVIES;
+            if (album != null) {
+                relativePath += "/" + album;
+            }
+            collections[i] = isImage ? MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY) : MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.MediaColumns.DISPLAY_NAME, item.destinationName);
+            values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+            values.put(MediaStore.MediaColumns.RELATIVE_PATH, relativePath);
+            // Hidden from other apps until it's written
+            values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+            insertIndexes[i] = inserts.size();
+            inserts.add(ContentProviderOperation.newInsert(collections[i]).withValues(values).build());
+            results.add(null);
+        }
+        if (inserts.isEmpty()) {
+            return results;
+        }
+        ContentProviderResult[] inserted;
+        try {
+            inserted = contentResolver.applyBatch(MediaStore.AUTHORITY, inserts);
+        }
+        catch (OperationApplicationException | RemoteException | RuntimeException e) {
+            for (int i = 0; i < items.size(); i++) {
+                if (insertIndexes[i] >= 0) {
+                    results.set(i, makeError("MediaStore", e.getMessage()));
+                }
+            }
+            return results;
+        }
+        ArrayList<ContentProviderOperation> finishes = new ArrayList<>(inserts.size());
+        Uri[] uris = new Uri[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            if (insertIndexes[i] < 0) {
+                continue;
+            }
+            Uri uri = inserted[insertIndexes[i]].uri;
+            if (uri == null) {
+                results.set(i, makeError("MediaStore", "Insert failed for " + items.get(i).destinationName));
+                continue;
+            }
+            try (SafDocumentTree.ParcelFileDescriptorSink sink = SafDocumentTree.ParcelFileDescriptorSink.open(contentResolver, uri)) {
+                FileCopier.copy(new File(items.get(i).sourcePath), sink);
+                uris[i] = uri;
+                finishes.add(ContentProviderOperation.newUpdate(uri).withValue(MediaStore.MediaColumns.IS_PENDING, 0).build());
+            }
+            catch (IOException | SecurityException e) {
+                results.set(i, makeError(e instanceof SecurityException ? "InsufficientPermission" : "IOException", e.getMessage()));
+                // Don't leave a broken pending entry around
+                finishes.add(ContentProviderOperation.newDelete(uri).build());
+            }
+        }
+        try {
+            contentResolver.applyBatch(MediaStore.AUTHORITY, finishes);
+        }
+        catch (OperationApplicationException | RemoteException | RuntimeException e) {
+            for (int i = 0; i < items.size(); i++) {
+                if (uris[i] != null) {
+                    uris[i] = null;
+                    results.set(i, makeError("MediaStore", e.getMessage()));
+                }
+            }
+        }
+        // MediaStore renames on collision, so look up what they ended up as
+        Map<Uri, String> names = new HashMap<>();
+        Map<Uri, List<Long>> idsByCollection = new HashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            if (uris[i] != null) {
+                List<Long> ids = idsByCollection.get(collections[i]);
+                if (ids == null) {
+                    ids = new ArrayList<>();
+                    idsByCollection.put(collections[i], ids);
+                }
+                ids.add(ContentUris.parseId(uris[i]));
+            }
+        }
+        for (Map.Entry<Uri, List<Long>> entry : idsByCollection.entrySet()) {
+            queryDisplayNames(entry.getKey(), entry.getValue(), names);
+        }
+        for (int i = 0; i < items.size(); i++) {
+            if (uris[i] == null) {
+                continue;
+            }
+            Map<String, Object> result = new HashMap<>();
+            String name = names.get(uris[i]);
+            result.put("name", name == null ? items.get(i).destinationName : name);
+            results.set(i, result);
+        }
+        return results;
+    }
+
+    private void queryDisplayNames(Uri collection, List<Long> ids, Map<Uri, String> names) {
+        StringBuilder selection = new StringBuilder(MediaStore.MediaColumns._ID + " IN (");
+        String[] selectionArgs = new String[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = ids.get(i).toString();
+        }
+        selection.append(")");
+        try (Cursor cursor = contentResolver.query(collection, new String[]{MediaStore.MediaColumns._ID, MediaStore.MediaColumns.DISPLAY_NAME}, selection.toString(), selectionArgs, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                names.put(ContentUris.withAppendedId(collection, cursor.getLong(0)), cursor.getString(1));
+            }
+        }
+        catch (RuntimeException e) {
+            // Saved fine, just can't tell what they were called
+        }
+    }
+}
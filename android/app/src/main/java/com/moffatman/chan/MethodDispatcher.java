@@ -0,0 +1,152 @@
+package com.moffatman.chan;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.plugin.common.StandardMethodCodec;
+
+/**
+ * Routes calls on a MethodChannel to handlers by method name
+ * Each method declares whether it needs the UI thread, everything else runs on the channel's background queue
+ * Every call is traced and timed by CallMetrics, under channel/method
+ */
+class MethodDispatcher implements MethodChannel.MethodCallHandler {
+    interface MethodHandler {
+        void handle(@NonNull MethodCall call, @NonNull MethodChannel.Result result) throws Exception;
+    }
+
+    private static class Method {
+        final boolean uiThread;
+        final MethodHandler handler;
+        Method(boolean uiThread, MethodHandler handler) {
+            this.uiThread = uiThread;
+            this.handler = handler;
+        }
+    }
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Method> methods = new HashMap<>();
+    private String channelName;
+
+    /**
+     * Needs to touch views, windows or launch activities
+     */
+    MethodDispatcher ui(String name, MethodHandler handler) {
+        methods.put(name, new Method(true, handler));
+        return this;
+    }
+
+    /**
+     * Does IPC, disk or other slow work
+     */
+    MethodDispatcher background(String name, MethodHandler handler) {
+        methods.put(name, new Method(false, handler));
+        return this;
+    }
+
+    /**
+     * Start receiving calls, no more methods can be added after this
+     */
+    MethodChannel attach(BinaryMessenger messenger, String name) {
+        channelName = name.substring(name.lastIndexOf('/') + 1);
+        MethodChannel channel = new MethodChannel(messenger, name, StandardMethodCodec.INSTANCE, messenger.makeBackgroundTaskQueue());
+        channel.setMethodCallHandler(this);
+        return channel;
+    }
+
+    @Override
+    public void onMethodCall(@NonNull MethodCall call, @NonNull MethodChannel.Result result) {
+        Method method = methods.get(call.method);
+        if (method == null) {
+            result.notImplemented();
+            return;
+        }
+        // Timed until the result is sent, including any time waiting for the UI thread
+        CallMetrics.Call timing = CallMetrics.start(channelName + "/" + call.method);
+        TimedResult timedResult = new TimedResult(result, timing);
+        if (method.uiThread && Looper.myLooper() != Looper.getMainLooper()) {
+            mainHandler.post(() -> run(method, call, timedResult, timing));
+        }
+        else {
+            run(method, call, timedResult, timing);
+        }
+    }
+
+    private static void run(Method method, MethodCall call, TimedResult result, CallMetrics.Call timing) {
+        CallMetrics.beginSection(timing);
+        try {
+            method.handler.handle(call, result);
+        }
+        catch (Exception e) {
+            if (result.hasReplied()) {
+                Log.w("MethodDispatcher", call.method + " threw after replying", e);
+            }
+            else {
+                result.error("JAVA_EXCEPTION", e.getMessage(), null);
+            }
+        }
+        finally {
+            CallMetrics.endSection();
+        }
+    }
+
+    /**
+     * Only the first reply goes through, a second one would make Flutter throw
+     */
+    private static class TimedResult implements MethodChannel.Result {
+        private final MethodChannel.Result result;
+        private final CallMetrics.Call timing;
+        private final AtomicBoolean replied = new AtomicBoolean(false);
+
+        TimedResult(MethodChannel.Result result, CallMetrics.Call timing) {
+            this.result = result;
+            this.timing = timing;
+        }
+
+        boolean hasReplied() {
+            return replied.get();
+        }
+
+        private boolean claim(String reply) {
+            if (replied.compareAndSet(false, true)) {
+                return true;
+            }
+            Log.w("MethodDispatcher", "Dropped " + reply + ", already replied");
+            return false;
+        }
+
+        @Override
+        public void success(Object value) {
+            if (claim("success")) {
+                timing.finish(false);
+                result.success(value);
+            }
+        }
+
+        @Override
+        public void error(@NonNull String errorCode, String errorMessage, Object errorDetails) {
+            if (claim("error " + errorCode)) {
+                timing.finish(true);
+                result.error(errorCode, errorMessage, errorDetails);
+            }
+        }
+
+        @Override
+        public void notImplemented() {
+            if (claim("notImplemented")) {
+                timing.finish(true);
+                result.notImplemented();
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.moffatman.chan;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
+
+import androidx.core.app.NotificationCompat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Posts push notifications tagged with userId/type/board/threadId
+ * A burst for the same thread becomes one notification, updated at most once per window
+ * The tags mean they can be cleared individually, instead of cancelling everything
+ */
+class NotificationRegistry {
+    private static final String CHANNEL_ID = "up";
+    private static final String CHANNEL_NAME = "Unified Push";
+    private static final long COALESCE_WINDOW_MILLIS = 1500;
+    // More than this won't fit in InboxStyle anyway
+    private static final int MAX_LINES = 6;
+    // Same as flutter_local_notifications, so that it still handles taps
+    private static final String ACTION_SELECT_NOTIFICATION = "SELECT_NOTIFICATION";
+    private static final String EXTRA_NOTIFICATION_ID = "notificationId";
+    private static final String EXTRA_PAYLOAD = "payload";
+    private static NotificationRegistry instance;
+
+    private static class Entry {
+        final String tag;
+        final String group;
+        final ArrayDeque<String> lines = new ArrayDeque<>();
+        String title;
+        String payload;
+        int count = 0;
+        long lastPostedAt = 0;
+        boolean flushScheduled = false;
+
+        Entry(String tag, String group) {
+            this.tag = tag;
+            this.group = group;
+        }
+    }
+
+    private final Context context;
+    private final NotificationManager notificationManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Only touched on the main thread
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private NotificationRegistry(Context context) {
+        this.context = context;
+        this.notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    static synchronized NotificationRegistry get(Context context) {
+        if (instance == null) {
+            instance = new NotificationRegistry(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    static String makeTag(String userId, String type, String board, String threadId) {
+        return userId + "/" + type + "/" + board + "/" + threadId;
+    }
+
+    private void ensureChannel() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && notificationManager.getNotificationChannel(CHANNEL_ID) == null) {
+            // Normally already made by flutter_local_notifications
+            notificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID, CHANNEL_NAME, NotificationManager.IMPORTANCE_HIGH));
+        }
+    }
+
+    private boolean isShowing(String tag) {
+        for (StatusBarNotification notification : notificationManager.getActiveNotifications()) {
+            if (tag.equals(notification.getTag())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Must be called on the main thread
+     * @param group matches the groupKey used when posting through flutter_local_notifications
+     */
+    void post(String tag, String group, String title, String body, String payload) {
+        Entry entry = entries.get(tag);
+        if (entry == null) {
+            entry = new Entry(tag, group);
+            entries.put(tag, entry);
+        }
+        entry.title = title;
+        entry.payload = payload;
+        entry.count++;
+        if (body != null && !body.isEmpty()) {
+            entry.lines.addFirst(body);
+            while (entry.lines.size() > MAX_LINES) {
+                entry.lines.removeLast();
+            }
+        }
+        if (entry.flushScheduled) {
+            // Will be picked up by the scheduled update
+            return;
+        }
+        long sinceLastPost = SystemClock.uptimeMillis() - entry.lastPostedAt;
+        if (sinceLastPost >= COALESCE_WINDOW_MILLIS) {
+            // Start of a burst, show it straight away
+            flush(entry, true);
+        }
+        else {
+            entry.flushScheduled = true;
+            Entry scheduled = entry;
+            mainHandler.postDelayed(() -> flush(scheduled, false), COALESCE_WINDOW_MILLIS - sinceLastPost);
+        }
+    }
+
+    private void flush(Entry entry, boolean startOfBurst) {
+        entry.flushScheduled = false;
+        if (entries.get(entry.tag) != entry) {
+            // Cleared while waiting
+            return;
+        }
+        if (startOfBurst && entry.count > 1 && !isShowing(entry.tag)) {
+            // User dismissed the last one, don't bring back what they've seen
+            String latest = entry.lines.peekFirst();
+            entry.lines.clear();
+            if (latest != null) {
+                entry.lines.add(latest);
+            }
+            entry.count = 1;
+        }
+        ensureChannel();
+        int id = entry.tag.hashCode();
+        Intent intent = new Intent(context, MainActivity.class)
+                .setAction(ACTION_SELECT_NOTIFICATION)
+                .putExtra(EXTRA_NOTIFICATION_ID, id)
+                .putExtra(EXTRA_PAYLOAD, entry.payload);
+        PendingIntent contentIntent = PendingIntent.getActivity(context, id, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_stat_clover)
+                .setContentTitle(entry.title)
+                .setContentText(entry.lines.peekFirst())
+                .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setGroup(entry.group)
+                .setContentIntent(contentIntent)
+                .setAutoCancel(true)
+                // Only the start of a burst should make a sound
+                .setOnlyAlertOnce(!startOfBurst);
+        if (entry.count > 1) {
+            NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+            for (String line : entry.lines) {
+                style.addLine(line);
+            }
+            if (entry.count > entry.lines.size()) {
+                style.setSummaryText("+" + (entry.count - entry.lines.size()) + " more");
+            }
+            builder.setNumber(entry.count).setStyle(style);
+        }
+        Notification notification = builder.build();
+        notificationManager.notify(entry.tag, id, notification);
+        entry.lastPostedAt = SystemClock.uptimeMillis();
+    }
+
+    private static boolean matches(String tag, String target, boolean wholeBoard) {
+        return wholeBoard ? tag.startsWith(target) : tag.equals(target);
+    }
+
+    /**
+     * Must be called on the main thread
+     * @param threadId null to clear everything on the board
+     */
+    void clear(String userId, String type, String board, String threadId) {
+        boolean wholeBoard = threadId == null;
+        String target = makeTag(userId, type, board, wholeBoard ? "" : threadId);
+        // flutter_local_notifications doesn't tag, but it does set the group to userId/board/threadId
+        String groupTarget = userId + "/" + board + "/" + (wholeBoard ? "" : threadId);
+        entries.keySet().removeIf(tag -> matches(tag, target, wholeBoard));
+        for (StatusBarNotification notification : notificationManager.getActiveNotifications()) {
+            String tag = notification.getTag();
+            boolean match;
+            if (tag != null) {
+                match = matches(tag, target, wholeBoard);
+            }
+            else {
+                // Posted by the fallback path
+                String group = notification.getNotification().getGroup();
+                match = group != null && matches(group, groupTarget, wholeBoard);
+            }
+            if (match) {
+                notificationManager.cancel(tag, notification.getId());
+            }
+        }
+    }
+}
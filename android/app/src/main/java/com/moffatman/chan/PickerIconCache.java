@@ -0,0 +1,173 @@
+package com.moffatman.chan;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * PNG icons for picker activities, kept in memory and on disk
+ * Keyed by when the package was installed or updated, and screen density, so they only need to be rendered once
+ */
+class PickerIconCache {
+    // What comes after prefixFor in a cache file name
+    private static final Pattern KEY_SUFFIX = Pattern.compile("\\d+_\\d+\\.png");
+    private final PackageManager pm;
+    private final File directory;
+    private final int densityDpi;
+    private final LruCache<String, byte[]> memory = new LruCache<String, byte[]>(2 * 1024 * 1024) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+    private final ThreadPoolExecutor executor;
+    // Only ever grows by one entry per installed package
+    private final Map<String, Long> packageVersions = new ConcurrentHashMap<>();
+
+    PickerIconCache(Context context) {
+        pm = context.getPackageManager();
+        directory = new File(context.getCacheDir(), "pickerIcons");
+        densityDpi = context.getResources().getDisplayMetrics().densityDpi;
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private String prefixFor(ResolveInfo resolveInfo) {
+        return resolveInfo.activityInfo.packageName + "_" + resolveInfo.activityInfo.name + "_";
+    }
+
+    /**
+     * Changes when the package is updated, without asking PackageManager
+     */
+    private long versionOf(ResolveInfo resolveInfo) {
+        String packageName = resolveInfo.activityInfo.packageName;
+        Long version = packageVersions.get(packageName);
+        if (version == null) {
+            String sourceDir = resolveInfo.activityInfo.applicationInfo.sourceDir;
+            version = sourceDir == null ? 0 : new File(sourceDir).lastModified();
+            packageVersions.put(packageName, version);
+        }
+        return version;
+    }
+
+    private String keyFor(ResolveInfo resolveInfo) {
+        return prefixFor(resolveInfo) + versionOf(resolveInfo) + "_" + densityDpi;
+    }
+
+    /**
+     * @return PNG bytes of each icon, in the same order as resolveInfos
+     */
+    List<byte[]> getIcons(List<ResolveInfo> resolveInfos) {
+        List<byte[]> icons = new ArrayList<>(resolveInfos.size());
+        List<Future<byte[]>> misses = new ArrayList<>(resolveInfos.size());
+        for (ResolveInfo resolveInfo : resolveInfos) {
+            String key = keyFor(resolveInfo);
+            byte[] icon = memory.get(key);
+            icons.add(icon);
+            misses.add(icon != null ? null : executor.submit(() -> {
+                byte[] loaded = loadOrRender(resolveInfo, key);
+                memory.put(key, loaded);
+                return loaded;
+            }));
+        }
+        for (int i = 0; i < icons.size(); i++) {
+            Future<byte[]> miss = misses.get(i);
+            if (miss == null) {
+                continue;
+            }
+            try {
+                icons.set(i, miss.get());
+            }
+            catch (ExecutionException | InterruptedException e) {
+                Log.w("PickerIconCache", "Failed to get icon", e);
+                icons.set(i, new byte[0]);
+            }
+        }
+        return icons;
+    }
+
+    private byte[] loadOrRender(ResolveInfo resolveInfo, String key) throws IOException {
+        File file = new File(directory, key + ".png");
+        if (file.exists()) {
+            try (FileInputStream stream = new FileInputStream(file)) {
+                byte[] data = new byte[(int) file.length()];
+                int offset = 0;
+                int len;
+                while (offset < data.length && (len = stream.read(data, offset, data.length - offset)) > 0) {
+                    offset += len;
+                }
+                if (offset == data.length) {
+                    return data;
+                }
+            }
+            catch (IOException e) {
+                Log.w("PickerIconCache", "Failed to read " + file, e);
+            }
+        }
+        byte[] data = render(resolveInfo);
+        directory.mkdirs();
+        // Old versions of this icon are no longer needed
+        // Only exact matches, other activities in the package or similar package names share the prefix
+        String prefix = prefixFor(resolveInfo);
+        String current = key + ".png";
+        File[] existing = directory.listFiles((dir, name) -> name.startsWith(prefix) && !name.equals(current) && KEY_SUFFIX.matcher(name.substring(prefix.length())).matches());
+        if (existing != null) {
+            for (File old : existing) {
+                old.delete();
+            }
+        }
+        File tmp = new File(directory, key + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            stream.write(data);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+        return data;
+    }
+
+    private byte[] render(ResolveInfo resolveInfo) {
+        Drawable icon = resolveInfo.loadIcon(pm);
+        Bitmap bitmap = null;
+        if (icon instanceof BitmapDrawable) {
+            bitmap = ((BitmapDrawable)icon).getBitmap();
+        }
+        if (bitmap == null) {
+            if (icon.getIntrinsicWidth() <= 0 || icon.getIntrinsicHeight() <= 0) {
+                bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+            }
+            else {
+                bitmap = Bitmap.createBitmap(icon.getIntrinsicWidth(), icon.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
+            }
+            Canvas canvas = new Canvas(bitmap);
+            icon.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
+            icon.draw(canvas);
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        return os.toByteArray();
+    }
+}
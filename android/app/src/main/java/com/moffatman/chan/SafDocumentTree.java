@@ -0,0 +1,202 @@
+package com.moffatman.chan;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import androidx.documentfile.provider.DocumentFile;
+
+import com.moffatman.chan.storage.DocumentTree;
+import com.moffatman.chan.storage.MimeTypeLookup;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A Storage Access Framework tree, for StorageEngine
+ */
+class SafDocumentTree implements DocumentTree<DocumentFile> {
+    static final MimeTypeLookup MIME_TYPE_MAP = new MimeTypeLookup() {
+        @Override
+        public String getMimeTypeFromExtension(String extension) {
+            return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+        }
+
+        @Override
+        public String getExtensionFromMimeType(String mimeType) {
+            return MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
+        }
+    };
+
+    private final Context context;
+
+    SafDocumentTree(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    static class ParcelFileDescriptorSink implements Sink {
+        private final ParcelFileDescriptor fileDescriptor;
+        private final FileOutputStream stream;
+
+        ParcelFileDescriptorSink(ParcelFileDescriptor fileDescriptor) {
+            this.fileDescriptor = fileDescriptor;
+            this.stream = new FileOutputStream(fileDescriptor.getFileDescriptor());
+        }
+
+        static ParcelFileDescriptorSink open(ContentResolver resolver, Uri uri) throws FileNotFoundException {
+            ParcelFileDescriptor fileDescriptor = resolver.openFileDescriptor(uri, "w");
+            if (fileDescriptor == null) {
+                throw new FileNotFoundException("Could not open " + uri);
+            }
+            return new ParcelFileDescriptorSink(fileDescriptor);
+        }
+
+        @Override
+        public WritableByteChannel getChannel() {
+            return stream.getChannel();
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            // Providers may hand us a pipe or socket instead of a real file
+            return fileDescriptor.getStatSize() >= 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isRegularFile()) {
+                try {
+                    CallMetrics.addBytes(stream.getChannel().position());
+                }
+                catch (IOException e) {
+                    // Only for metrics
+                }
+            }
+            stream.close();
+            fileDescriptor.close();
+        }
+    }
+
+    private Uri buildChildDocumentsUri(DocumentFile parent) {
+        return DocumentsContract.buildChildDocumentsUriUsingTree(
+                parent.getUri(),
+                DocumentsContract.getDocumentId(parent.getUri())
+        );
+    }
+
+    @Override
+    public String getKey(DocumentFile document) {
+        return document.getUri().toString();
+    }
+
+    @Override
+    public boolean exists(DocumentFile document) {
+        return document.exists();
+    }
+
+    @Override
+    public boolean isDirectory(DocumentFile document) {
+        return document.isDirectory();
+    }
+
+    @Override
+    public DocumentFile findChild(DocumentFile parent, String displayName) {
+        try (Cursor cursor = context.getContentResolver().query(buildChildDocumentsUri(parent), new String[]{
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME
+        }, null, null, null)) {
+            while (cursor.moveToNext()) {
+                if (displayName.equals(cursor.getString(1))) {
+                    return DocumentFile.fromTreeUri(context, DocumentsContract.buildDocumentUriUsingTree(parent.getUri(), cursor.getString(0)));
+                }
+            }
+        }
+        catch (Exception e) {
+            Log.w("fastFindFile", "Got exception", e);
+        }
+        return null;
+    }
+
+    @Override
+    public Map<String, DocumentFile> listChildren(DocumentFile parent) throws IOException {
+        Map<String, DocumentFile> children = new HashMap<>();
+        try (Cursor cursor = context.getContentResolver().query(buildChildDocumentsUri(parent), new String[]{
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME
+        }, null, null, null)) {
+            if (cursor == null) {
+                throw new FileNotFoundException("Could not list " + parent.getUri());
+            }
+            while (cursor.moveToNext()) {
+                // Building the handle is local, no query
+                children.put(cursor.getString(1), DocumentFile.fromTreeUri(context, DocumentsContract.buildDocumentUriUsingTree(parent.getUri(), cursor.getString(0))));
+            }
+        }
+        return children;
+    }
+
+    @Override
+    public Map<String, Long> listFileSizes(DocumentFile parent) throws IOException {
+        Map<String, Long> sizes = new HashMap<>();
+        try (Cursor cursor = context.getContentResolver().query(buildChildDocumentsUri(parent), new String[]{
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                DocumentsContract.Document.COLUMN_SIZE,
+                DocumentsContract.Document.COLUMN_MIME_TYPE
+        }, null, null, null)) {
+            if (cursor == null) {
+                throw new FileNotFoundException("Could not list " + parent.getUri());
+            }
+            while (cursor.moveToNext()) {
+                if (!DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(2)) && !cursor.isNull(1)) {
+                    sizes.put(cursor.getString(0), cursor.getLong(1));
+                }
+            }
+        }
+        return sizes;
+    }
+
+    @Override
+    public DocumentFile createDirectory(DocumentFile parent, String displayName) {
+        return parent.createDirectory(displayName);
+    }
+
+    @Override
+    public DocumentFile createFile(DocumentFile parent, String mimeType, String displayName) {
+        return parent.createFile(mimeType, displayName);
+    }
+
+    @Override
+    public boolean delete(DocumentFile document) {
+        return document.delete();
+    }
+
+    @Override
+    public String getName(DocumentFile document) {
+        return document.getName();
+    }
+
+    @Override
+    public Sink openForWriting(DocumentFile document) throws FileNotFoundException {
+        return ParcelFileDescriptorSink.open(context.getContentResolver(), document.getUri());
+    }
+
+    @Override
+    public ReadableByteChannel openForReading(DocumentFile document) throws IOException {
+        ParcelFileDescriptor fileDescriptor = context.getContentResolver().openFileDescriptor(document.getUri(), "r");
+        if (fileDescriptor == null) {
+            throw new FileNotFoundException("Could not open " + document.getUri());
+        }
+        // Closing the stream closes the descriptor too
+        return new ParcelFileDescriptor.AutoCloseInputStream(fileDescriptor).getChannel();
+    }
+}
@@ -0,0 +1,296 @@
+package com.moffatman.chan;
+
+import android.content.Context;
+import android.content.UriPermission;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Environment;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import androidx.documentfile.provider.DocumentFile;
+
+import com.moffatman.chan.storage.DocumentTree;
+import com.moffatman.chan.storage.FileDocumentTree;
+import com.moffatman.chan.storage.SaveQueue;
+import com.moffatman.chan.storage.StorageEngine;
+import com.moffatman.chan.storage.StorageException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Saving into folders the user picked
+ * One per process, so that queued saves outlive the activity
+ * Trees on primary storage which we can write to directly skip the DocumentsProvider
+ */
+class SafStorage {
+    private static final int DEFAULT_PARALLELISM = 2;
+    private static final String EXTERNAL_STORAGE_AUTHORITY = "com.android.externalstorage.documents";
+    private static final String PRIMARY_VOLUME_PREFIX = "primary:";
+    // Stands in for null in directRoots, ConcurrentHashMap can't hold it
+    private static final File NOT_DIRECT = new File("");
+    private static SafStorage instance;
+    private final Context context;
+    private final StorageEngine<DocumentFile> engine;
+    private final StorageEngine<File> directEngine;
+    // Maps tree URI to the real directory behind it, checked once per tree
+    private final Map<Uri, File> directRoots = new ConcurrentHashMap<>();
+    private final SaveQueue saveQueue;
+    final SaveQueueEvents saveQueueEvents = new SaveQueueEvents();
+    // Maps tree URI to whether we still hold read and write permission on it
+    // Only reloaded when it changes or a write fails, as the system list can be long
+    private volatile Map<Uri, Boolean> persistedPermissions;
+
+    private SafStorage(Context context) {
+        this.context = context;
+        engine = new StorageEngine<>(new SafDocumentTree(context), SafDocumentTree.MIME_TYPE_MAP);
+        directEngine = new StorageEngine<>(new DirectDocumentTree(), SafDocumentTree.MIME_TYPE_MAP);
+        // Only used by saves which ask for it
+        // Indexing is one listing per directory, no need for more than one at a time
+        Executor indexExecutor = Executors.newSingleThreadExecutor();
+        engine.enableDeduplication(indexExecutor);
+        directEngine.enableDeduplication(indexExecutor);
+        saveQueue = new SaveQueue(new File(context.getNoBackupFilesDir(), "saveQueue.journal"), this::saveQueued, Executors.newCachedThreadPool(), DEFAULT_PARALLELISM);
+        saveQueue.setListener(saveQueueEvents);
+        saveQueueEvents.setQueue(saveQueue);
+    }
+
+    static synchronized SafStorage get(Context context) {
+        if (instance == null) {
+            instance = new SafStorage(context.getApplicationContext());
+            // Carry on with anything the last process didn't finish
+            new Thread(() -> {
+                try {
+                    instance.saveQueue.resume();
+                }
+                catch (IOException e) {
+                    Log.w("SafStorage", "Failed to resume save queue", e);
+                }
+            }, "SaveQueue").start();
+        }
+        return instance;
+    }
+
+    SaveQueue getSaveQueue() {
+        return saveQueue;
+    }
+
+    void reloadPersistedPermissions() {
+        Map<Uri, Boolean> permissions = new HashMap<>();
+        for (UriPermission permission : context.getContentResolver().getPersistedUriPermissions()) {
+            permissions.put(permission.getUri(), permission.isWritePermission() && permission.isReadPermission());
+        }
+        persistedPermissions = permissions;
+    }
+
+    private boolean hasPersistedPermission(Uri tree) {
+        Map<Uri, Boolean> permissions = persistedPermissions;
+        if (permissions == null) {
+            reloadPersistedPermissions();
+            permissions = persistedPermissions;
+        }
+        return Boolean.TRUE.equals(permissions.get(tree));
+    }
+
+    /**
+     * Where to save, the real directory if the tree has one, otherwise the document
+     */
+    static class Destination {
+        final Uri tree;
+        final List<String> subfolders;
+        final File directory;
+        private DocumentFile document;
+
+        private Destination(Uri tree, List<String> subfolders, File directory, DocumentFile document) {
+            this.tree = tree;
+            this.subfolders = subfolders;
+            this.directory = directory;
+            this.document = document;
+        }
+    }
+
+    /**
+     * Only counts bytes, otherwise plain files
+     */
+    private static class DirectDocumentTree extends FileDocumentTree {
+        DirectDocumentTree() {
+            super(SafDocumentTree.MIME_TYPE_MAP);
+        }
+
+        @Override
+        public DocumentTree.Sink openForWriting(File document) throws IOException {
+            DocumentTree.Sink sink = super.openForWriting(document);
+            return new DocumentTree.Sink() {
+                @Override
+                public WritableByteChannel getChannel() {
+                    return sink.getChannel();
+                }
+
+                @Override
+                public boolean isRegularFile() {
+                    return true;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    CallMetrics.addBytes(document.length());
+                    sink.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * @return the directory on primary storage behind the tree, if we can write to it without the provider
+     */
+    private File getDirectRoot(Uri tree) {
+        File root = directRoots.get(tree);
+        if (root == null) {
+            root = findDirectRoot(tree);
+            directRoots.put(tree, root == null ? NOT_DIRECT : root);
+        }
+        return root == NOT_DIRECT ? null : root;
+    }
+
+    private static File findDirectRoot(Uri tree) {
+        if (!EXTERNAL_STORAGE_AUTHORITY.equals(tree.getAuthority())) {
+            return null;
+        }
+        String documentId;
+        try {
+            documentId = DocumentsContract.getTreeDocumentId(tree);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!documentId.startsWith(PRIMARY_VOLUME_PREFIX)) {
+            // SD cards and USB drives, their paths aren't stable
+            return null;
+        }
+        File root = new File(Environment.getExternalStorageDirectory(), documentId.substring(PRIMARY_VOLUME_PREFIX.length()));
+        if (!root.isDirectory()) {
+            return null;
+        }
+        try {
+            // canWrite can't be trusted under scoped storage, actually try it
+            File probe = File.createTempFile(".probe", null, root);
+            if (!probe.delete()) {
+                Log.w("SafStorage", "Could not delete " + probe);
+            }
+            return root;
+        }
+        catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    private DocumentFile resolveDocument(Uri tree, List<String> subfolders) throws StorageException, IOException {
+        DocumentFile root = DocumentFile.fromTreeUri(context, tree);
+        if (root == null) {
+            throw new StorageException("DirectoryNotFound", "Supplied directory does not exist");
+        }
+        return engine.resolveDirectory(root, subfolders);
+    }
+
+    Destination resolveDestination(Uri destination, List<String> destinationSubfolders) throws StorageException, IOException {
+        if (!hasPersistedPermission(destination)) {
+            throw new StorageException("InsufficientPermission", "Permissions not enough or have expired");
+        }
+        File directRoot = getDirectRoot(destination);
+        if (directRoot != null) {
+            try {
+                return new Destination(destination, destinationSubfolders, directEngine.resolveDirectory(directRoot, destinationSubfolders), null);
+            }
+            catch (IOException | SecurityException e) {
+                Log.w("SafStorage", "Direct access to " + directRoot + " failed, using SAF", e);
+                directRoots.put(destination, NOT_DIRECT);
+            }
+        }
+        return new Destination(destination, destinationSubfolders, null, resolveDocument(destination, destinationSubfolders));
+    }
+
+    String saveFile(Destination destination, String sourcePath, String destinationName) throws StorageException, IOException {
+        return saveFile(destination, sourcePath, destinationName, false).name;
+    }
+
+    /**
+     * @param deduplicate if enabled, an existing file with the same contents may be returned instead
+     */
+    StorageEngine.SavedFile saveFile(Destination destination, String sourcePath, String destinationName, boolean deduplicate) throws StorageException, IOException {
+        if (destination.directory != null && destination.document == null) {
+            try {
+                StorageEngine.SavedFile saved = directEngine.saveFile(destination.directory, new File(sourcePath), destinationName, deduplicate);
+                if (!saved.deduplicated) {
+                    // The provider would have done this for us
+                    MediaScannerConnection.scanFile(context, new String[]{new File(destination.directory, saved.name).getPath()}, null, null);
+                }
+                return saved;
+            }
+            catch (IOException | SecurityException e) {
+                if (!new File(sourcePath).canRead()) {
+                    // Not the destination's fault
+                    throw e;
+                }
+                // Probably a file type scoped storage won't let us write there
+                // The engine has already deleted anything it half wrote
+                Log.w("SafStorage", "Direct save into " + destination.directory + " failed, using SAF", e);
+                destination.document = resolveDocument(destination.tree, destination.subfolders);
+            }
+        }
+        return engine.saveFile(destination.document, new File(sourcePath), destinationName, deduplicate);
+    }
+
+    void invalidateTree(Uri tree) {
+        DocumentFile root = DocumentFile.fromTreeUri(context, tree);
+        if (root != null) {
+            engine.invalidateTree(root);
+        }
+        File directRoot = directRoots.remove(tree);
+        if (directRoot != null && directRoot != NOT_DIRECT) {
+            directEngine.invalidateTree(directRoot);
+        }
+    }
+
+    /**
+     * Forget everything cached, to be used when the user picks a new directory
+     */
+    void clear() {
+        engine.clear();
+        directEngine.clear();
+        directRoots.clear();
+    }
+
+    private String saveQueued(SaveQueue.Job job) throws StorageException, IOException {
+        Uri tree = Uri.parse(job.destinationDir);
+        // Not a channel call, but should be measured the same way
+        CallMetrics.Call timing = CallMetrics.start("saveQueue/save");
+        CallMetrics.beginSection(timing);
+        boolean failed = true;
+        try {
+            String name = saveFile(resolveDestination(tree, job.destinationSubfolders), job.sourcePath, job.destinationName);
+            failed = false;
+            return name;
+        }
+        catch (FileNotFoundException e) {
+            invalidateTree(tree);
+            throw new StorageException("FileNotFound", e.getMessage());
+        }
+        catch (SecurityException e) {
+            reloadPersistedPermissions();
+            throw new StorageException("InsufficientPermission", e.getMessage());
+        }
+        finally {
+            CallMetrics.endSection();
+            timing.finish(failed);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.moffatman.chan;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.moffatman.chan.storage.SaveQueue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Pushes what the save queue is doing over an EventChannel
+ * Nothing is buffered while nobody is listening, getPendingSaves covers that
+ */
+class SaveQueueEvents implements SaveQueue.Listener, EventChannel.StreamHandler {
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private SaveQueue queue;
+    private EventChannel.EventSink events;
+
+    void setQueue(SaveQueue queue) {
+        this.queue = queue;
+    }
+
+    private void send(SaveQueue.Job job, String type, Map<String, Object> event) {
+        event.put("id", job.id);
+        event.put("type", type);
+        event.put("pending", queue.getPending().size());
+        // Channel calls need to be made on the main thread
+        mainHandler.post(() -> {
+            if (events != null) {
+                events.success(event);
+            }
+        });
+    }
+
+    @Override
+    public void onStarted(SaveQueue.Job job) {
+        send(job, "started", new HashMap<>());
+    }
+
+    @Override
+    public void onCompleted(SaveQueue.Job job, String name) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("name", name);
+        send(job, "completed", event);
+    }
+
+    @Override
+    public void onFailed(SaveQueue.Job job, String code, String message) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("errorCode", code);
+        event.put("errorMessage", message);
+        send(job, "failed", event);
+    }
+
+    @Override
+    public void onListen(Object arguments, EventChannel.EventSink events) {
+        this.events = events;
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+        events = null;
+    }
+}
@@ -0,0 +1,103 @@
+package com.moffatman.chan.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileCopier against the old 4096-byte stream loop, for an image and a video sized file
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileCopierBenchmark {
+    @Param({"307200", "67108864"})
+    public int size;
+
+    private File source;
+    private File destination;
+
+    @Setup
+    public void createFiles() throws IOException {
+        source = File.createTempFile("source", ".bin");
+        destination = File.createTempFile("destination", ".bin");
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(0).nextBytes(chunk);
+        try (FileOutputStream stream = new FileOutputStream(source)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                stream.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    @TearDown
+    public void deleteFiles() {
+        source.delete();
+        destination.delete();
+    }
+
+    @Benchmark
+    public void streamLoop() throws IOException {
+        try (
+            FileInputStream sourceReadStream = new FileInputStream(source);
+            FileOutputStream destinationWriteStream = new FileOutputStream(destination)
+        ) {
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = sourceReadStream.read(buffer, 0, 4096)) > 0) {
+                destinationWriteStream.write(buffer, 0, len);
+            }
+        }
+    }
+
+    private long copy(boolean regularFile) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(destination)) {
+            return FileCopier.copy(source, new DocumentTree.Sink() {
+                @Override
+                public WritableByteChannel getChannel() {
+                    return stream.getChannel();
+                }
+
+                @Override
+                public boolean isRegularFile() {
+                    return regularFile;
+                }
+
+                @Override
+                public void close() {
+
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        return copy(true);
+    }
+
+    @Benchmark
+    public long directBuffer() throws IOException {
+        return copy(false);
+    }
+}
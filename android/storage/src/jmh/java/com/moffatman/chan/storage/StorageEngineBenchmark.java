@@ -0,0 +1,97 @@
+package com.moffatman.chan.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Saves into an in-memory provider, with simulated latency per provider round-trip
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StorageEngineBenchmark {
+    private static final int BULK_SIZE = 300;
+    private static final List<String> DEEP_SUBFOLDERS = Arrays.asList("chance", "board", "thread", "2024", "01", "images", "full", "originals");
+
+    @Param({"0", "50000"})
+    public long roundTripNanos;
+
+    private InMemoryDocumentTree tree;
+    private StorageEngine<InMemoryDocumentTree.Node> engine;
+    private InMemoryDocumentTree.Node collisionDir;
+    private File source;
+
+    @Setup(Level.Trial)
+    public void createSource() throws IOException {
+        source = File.createTempFile("benchmark", ".jpg");
+        try (FileOutputStream stream = new FileOutputStream(source)) {
+            stream.write(new byte[64 * 1024]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteSource() {
+        source.delete();
+    }
+
+    @Setup(Level.Iteration)
+    public void createTree() throws Exception {
+        tree = new InMemoryDocumentTree(MimeTypeLookup.BASIC, roundTripNanos);
+        engine = new StorageEngine<>(tree, MimeTypeLookup.BASIC);
+        collisionDir = engine.resolveDirectory(tree.root, Collections.singletonList("collisions"));
+        tree.put(collisionDir, "image.jpg");
+        for (int i = 1; i <= 1000; i++) {
+            tree.put(collisionDir, "image (" + i + ").jpg");
+        }
+    }
+
+    @Benchmark
+    public String singleSave() throws Exception {
+        InMemoryDocumentTree.Node dir = engine.resolveDirectory(tree.root, Collections.singletonList("single"));
+        return engine.saveFile(dir, source, "image.jpg");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK_SIZE)
+    public String bulkSave() throws Exception {
+        InMemoryDocumentTree.Node dir = engine.resolveDirectory(tree.root, Collections.singletonList("bulk"));
+        String name = null;
+        for (int i = 0; i < BULK_SIZE; i++) {
+            name = engine.saveFile(dir, source, i + ".jpg");
+        }
+        return name;
+    }
+
+    @Benchmark
+    public String deepSubfolders() throws Exception {
+        InMemoryDocumentTree.Node dir = engine.resolveDirectory(tree.root, DEEP_SUBFOLDERS);
+        return engine.saveFile(dir, source, "image.jpg");
+    }
+
+    @Benchmark
+    public String heavyCollisions() throws Exception {
+        return engine.saveFile(collisionDir, source, "image.jpg");
+    }
+}
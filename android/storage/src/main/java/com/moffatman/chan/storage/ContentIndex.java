@@ -0,0 +1,103 @@
+package com.moffatman.chan.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What is already in one directory, to spot saving the same thing twice
+ * Sizes come from one listing, hashes are only worked out when two sizes match
+ */
+class ContentIndex {
+    static final class Entry {
+        final String name;
+        final long size;
+        // Null until something of the same size is saved
+        volatile byte[] hash;
+
+        Entry(String name, long size, byte[] hash) {
+            this.name = name;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    private static final ThreadLocal<ByteBuffer> buffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(256 * 1024);
+        }
+    };
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<Long, List<Entry>> bySize = new HashMap<>();
+
+    synchronized void add(String name, long size, byte[] hash) {
+        remove(name);
+        Entry entry = new Entry(name, size, hash);
+        byName.put(name, entry);
+        List<Entry> sameSize = bySize.get(size);
+        if (sameSize == null) {
+            sameSize = new ArrayList<>(1);
+            bySize.put(size, sameSize);
+        }
+        sameSize.add(entry);
+    }
+
+    /**
+     * Only adds it if it's not already known, for filling in from a listing that may be older than our saves
+     */
+    synchronized void addIfAbsent(String name, long size) {
+        if (!byName.containsKey(name)) {
+            add(name, size, null);
+        }
+    }
+
+    synchronized void remove(String name) {
+        Entry entry = byName.remove(name);
+        if (entry != null) {
+            List<Entry> sameSize = bySize.get(entry.size);
+            sameSize.remove(entry);
+            if (sameSize.isEmpty()) {
+                bySize.remove(entry.size);
+            }
+        }
+    }
+
+    synchronized List<Entry> getCandidates(long size) {
+        List<Entry> sameSize = bySize.get(size);
+        return sameSize == null ? new ArrayList<>(0) : new ArrayList<>(sameSize);
+    }
+
+    static byte[] hash(ReadableByteChannel channel) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every JVM and Android has it
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ContentIndex.buffer.get();
+        buffer.clear();
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return digest.digest();
+    }
+
+    static byte[] hash(File file) throws IOException {
+        try (FileInputStream stream = new FileInputStream(file)) {
+            return hash(stream.getChannel());
+        }
+    }
+}
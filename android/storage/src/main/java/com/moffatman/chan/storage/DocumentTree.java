@@ -0,0 +1,71 @@
+package com.moffatman.chan.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+/**
+ * The operations StorageEngine needs from a folder the user picked
+ * @param <D> handle to one document (file or directory) in the tree
+ */
+public interface DocumentTree<D> {
+    /**
+     * Somewhere to copy the contents of a new file
+     */
+    interface Sink extends Closeable {
+        WritableByteChannel getChannel();
+
+        /**
+         * False for pipes and sockets, where FileChannel.transferTo may not work
+         */
+        boolean isRegularFile();
+    }
+
+    /**
+     * Stable string for this document, used as a cache key
+     */
+    String getKey(D document);
+
+    boolean exists(D document) throws IOException;
+
+    boolean isDirectory(D document) throws IOException;
+
+    /**
+     * @return null if there is no child with that display name
+     */
+    D findChild(D parent, String displayName) throws IOException;
+
+    /**
+     * Everything in parent, by display name
+     */
+    Map<String, D> listChildren(D parent) throws IOException;
+
+    /**
+     * Display names and sizes of the files (not directories) in parent
+     */
+    Map<String, Long> listFileSizes(D parent) throws IOException;
+
+    /**
+     * @return null if it couldn't be created
+     */
+    D createDirectory(D parent, String displayName) throws IOException;
+
+    /**
+     * The provider may append an extension for mimeType, or change displayName if it's taken
+     * @return null if it couldn't be created
+     */
+    D createFile(D parent, String mimeType, String displayName) throws IOException;
+
+    /**
+     * @return false if it couldn't be deleted
+     */
+    boolean delete(D document) throws IOException;
+
+    String getName(D document) throws IOException;
+
+    Sink openForWriting(D document) throws IOException;
+
+    ReadableByteChannel openForReading(D document) throws IOException;
+}
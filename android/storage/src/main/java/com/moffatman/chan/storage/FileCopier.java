@@ -0,0 +1,100 @@
+package com.moffatman.chan.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class FileCopier {
+    public interface Progress {
+        /**
+         * @return false to stop copying
+         */
+        boolean onProgress(long copied, long total);
+    }
+
+    // transferTo is done in pieces this big, so that progress can be reported
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> buffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(1024 * 1024);
+        }
+    };
+
+    private FileCopier() {
+
+    }
+
+    /**
+     * Uses FileChannel.transferTo where possible, otherwise a reusable direct buffer
+     * @return number of bytes copied
+     */
+    public static long copy(File sourceFile, DocumentTree.Sink sink) throws IOException {
+        return copy(sourceFile, sink, null);
+    }
+
+    private static void report(Progress progress, long copied, long total) throws InterruptedIOException {
+        if (progress != null && !progress.onProgress(copied, total)) {
+            throw new InterruptedIOException("Copy cancelled");
+        }
+    }
+
+    /**
+     * @param progress called between each piece, can be null
+     * @throws InterruptedIOException if progress asked to stop, the destination is left partially written
+     */
+    public static long copy(File sourceFile, DocumentTree.Sink sink, Progress progress) throws IOException {
+        try (FileInputStream sourceReadStream = new FileInputStream(sourceFile)) {
+            FileChannel source = sourceReadStream.getChannel();
+            WritableByteChannel destination = sink.getChannel();
+            long size = source.size();
+            long position = 0;
+            report(progress, position, size);
+            if (sink.isRegularFile()) {
+                // So a piece which failed partway through can be undone before falling back
+                long destinationStart = destination instanceof FileChannel ? ((FileChannel) destination).position() : -1;
+                try {
+                    while (position < size) {
+                        long transferred = source.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), destination);
+                        if (transferred <= 0) {
+                            break;
+                        }
+                        position += transferred;
+                        report(progress, position, size);
+                    }
+                }
+                catch (InterruptedIOException e) {
+                    throw e;
+                }
+                catch (IOException e) {
+                    if (destinationStart < 0) {
+                        // No way to know how much of the failed piece was written
+                        throw e;
+                    }
+                    Logger.getLogger("FileCopier").log(Level.WARNING, "transferTo failed, falling back to buffer", e);
+                    FileChannel fileDestination = (FileChannel) destination;
+                    fileDestination.truncate(destinationStart + position);
+                    fileDestination.position(destinationStart + position);
+                }
+            }
+            if (position < size) {
+                source.position(position);
+                ByteBuffer buffer = FileCopier.buffer.get();
+                buffer.clear();
+                while (source.read(buffer) >= 0 || buffer.position() > 0) {
+                    buffer.flip();
+                    position += destination.write(buffer);
+                    buffer.compact();
+                    report(progress, position, size);
+                }
+            }
+            return position;
+        }
+    }
+}
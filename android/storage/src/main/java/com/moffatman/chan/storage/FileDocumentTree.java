@@ -0,0 +1,156 @@
+package com.moffatman.chan.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A DocumentTree on plain files, naming new files the same way Android's ExternalStorageProvider does
+ */
+public class FileDocumentTree implements DocumentTree<File> {
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    private final MimeTypeLookup mimeTypes;
+
+    public FileDocumentTree(MimeTypeLookup mimeTypes) {
+        this.mimeTypes = mimeTypes;
+    }
+
+    @Override
+    public String getKey(File document) {
+        return document.getPath();
+    }
+
+    @Override
+    public boolean exists(File document) {
+        return document.exists();
+    }
+
+    @Override
+    public boolean isDirectory(File document) {
+        return document.isDirectory();
+    }
+
+    /**
+     * The provider would refuse anything that isn't a plain name, so we have to too
+     */
+    private static File getChild(File parent, String name) throws FileNotFoundException {
+        if (!StorageEngine.isValidDisplayName(name)) {
+            throw new FileNotFoundException("Invalid name \"" + name + "\" in " + parent);
+        }
+        return new File(parent, name);
+    }
+
+    @Override
+    public File findChild(File parent, String displayName) throws IOException {
+        File child = getChild(parent, displayName);
+        return child.exists() ? child : null;
+    }
+
+    @Override
+    public Map<String, File> listChildren(File parent) throws IOException {
+        File[] files = parent.listFiles();
+        if (files == null) {
+            throw new FileNotFoundException("Could not list " + parent);
+        }
+        Map<String, File> children = new HashMap<>();
+        for (File file : files) {
+            children.put(file.getName(), file);
+        }
+        return children;
+    }
+
+    @Override
+    public Map<String, Long> listFileSizes(File parent) throws IOException {
+        File[] files = parent.listFiles();
+        if (files == null) {
+            throw new FileNotFoundException("Could not list " + parent);
+        }
+        Map<String, Long> sizes = new HashMap<>();
+        for (File file : files) {
+            if (file.isFile()) {
+                sizes.put(file.getName(), file.length());
+            }
+        }
+        return sizes;
+    }
+
+    @Override
+    public File createDirectory(File parent, String displayName) throws IOException {
+        File directory = getChild(parent, StorageEngine.effectiveDisplayName(displayName));
+        return directory.mkdir() ? directory : null;
+    }
+
+    @Override
+    public File createFile(File parent, String mimeType, String displayName) throws IOException {
+        String name = StorageEngine.effectiveDisplayName(displayName);
+        // Same as android.os.FileUtils.splitFileName, so the extension is what the provider would pick
+        int dot = name.lastIndexOf('.');
+        String nameExtension = dot < 0 ? null : name.substring(dot + 1);
+        String mimeTypeFromExtension = nameExtension == null ? null : mimeTypes.getMimeTypeFromExtension(nameExtension);
+        if (mimeTypeFromExtension == null) {
+            mimeTypeFromExtension = DEFAULT_MIME_TYPE;
+        }
+        String extensionFromMimeType = (mimeType == null || mimeType.equals(DEFAULT_MIME_TYPE)) ? null : mimeTypes.getExtensionFromMimeType(mimeType);
+        String extension;
+        if (mimeTypeFromExtension.equals(mimeType) || (nameExtension != null && nameExtension.equals(extensionFromMimeType))) {
+            // The extension already matches
+            name = name.substring(0, dot);
+            extension = nameExtension;
+        }
+        else {
+            extension = extensionFromMimeType;
+        }
+        String suffix = extension == null ? "" : "." + extension;
+        File file = getChild(parent, name + suffix);
+        // Same limit as android.os.FileUtils.buildUniqueFile
+        for (int i = 1; !file.createNewFile(); i++) {
+            if (i > 32) {
+                return null;
+            }
+            file = getChild(parent, name + " (" + i + ")" + suffix);
+        }
+        return file;
+    }
+
+    @Override
+    public boolean delete(File document) {
+        return document.delete();
+    }
+
+    @Override
+    public String getName(File document) {
+        return document.getName();
+    }
+
+    @Override
+    public Sink openForWriting(File document) throws IOException {
+        FileOutputStream stream = new FileOutputStream(document);
+        return new Sink() {
+            @Override
+            public WritableByteChannel getChannel() {
+                return stream.getChannel();
+            }
+
+            @Override
+            public boolean isRegularFile() {
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                stream.close();
+            }
+        };
+    }
+
+    @Override
+    public ReadableByteChannel openForReading(File document) throws IOException {
+        return new FileInputStream(document).getChannel();
+    }
+}
@@ -0,0 +1,53 @@
+package com.moffatman.chan.storage;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps between file extensions and MIME types
+ */
+public interface MimeTypeLookup {
+    String getMimeTypeFromExtension(String extension);
+
+    String getExtensionFromMimeType(String mimeType);
+
+    /**
+     * Just the types we save, for when there is no platform lookup available
+     */
+    MimeTypeLookup BASIC = new MimeTypeLookup() {
+        private final Map<String, String> mimeTypes = new HashMap<>();
+        private final Map<String, String> extensions = new HashMap<>();
+
+        {
+            add("jpg", "image/jpeg");
+            add("jpeg", "image/jpeg");
+            add("png", "image/png");
+            add("gif", "image/gif");
+            add("webp", "image/webp");
+            add("avif", "image/avif");
+            add("mp4", "video/mp4");
+            add("webm", "video/webm");
+            add("mp3", "audio/mpeg");
+            add("txt", "text/plain");
+            add("json", "application/json");
+        }
+
+        private void add(String extension, String mimeType) {
+            mimeTypes.put(extension, mimeType);
+            if (!extensions.containsKey(mimeType)) {
+                extensions.put(mimeType, extension);
+            }
+        }
+
+        @Override
+        public String getMimeTypeFromExtension(String extension) {
+            return mimeTypes.get(extension.toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public String getExtensionFromMimeType(String mimeType) {
+            return extensions.get(mimeType);
+        }
+    };
+}
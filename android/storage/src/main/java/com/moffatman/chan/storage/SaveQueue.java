@@ -0,0 +1,342 @@
+package com.moffatman.chan.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves which keep going without the caller waiting on them, and across process restarts
+ * Pending jobs are journalled to disk, and picked up again by resume()
+ * Jobs going to the same provider share a parallelism limit, so a slow one doesn't hold up the rest
+ */
+public class SaveQueue {
+    private static final byte RECORD_ADDED = 'A';
+    private static final byte RECORD_DONE = 'D';
+
+    public static final class Job {
+        public final long id;
+        public final String sourcePath;
+        public final String destinationDir;
+        public final List<String> destinationSubfolders;
+        public final String destinationName;
+
+        public Job(long id, String sourcePath, String destinationDir, List<String> destinationSubfolders, String destinationName) {
+            this.id = id;
+            this.sourcePath = sourcePath;
+            this.destinationDir = destinationDir;
+            this.destinationSubfolders = Collections.unmodifiableList(new ArrayList<>(destinationSubfolders));
+            this.destinationName = destinationName;
+        }
+    }
+
+    public interface Worker {
+        /**
+         * @return the name it was saved with
+         */
+        String save(Job job) throws StorageException, IOException;
+    }
+
+    /**
+     * Called from the thread running the job
+     */
+    public interface Listener {
+        void onStarted(Job job);
+
+        void onCompleted(Job job, String name);
+
+        void onFailed(Job job, String code, String message);
+    }
+
+    private final File journal;
+    private final Worker worker;
+    private final Executor executor;
+    private volatile Listener listener;
+    private int parallelism;
+    private long nextId = 1;
+    // Whether the journal has been read back yet, nothing else may touch it until then
+    private boolean replayed = false;
+    private final Map<Long, Job> pending = new LinkedHashMap<>();
+    // Keyed by provider
+    private final Map<String, ArrayDeque<Job>> waiting = new HashMap<>();
+    private final Map<String, Integer> running = new HashMap<>();
+
+    public SaveQueue(File journal, Worker worker, Executor executor, int parallelism) {
+        this.journal = journal;
+        this.worker = worker;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * How many saves can run at once into each provider
+     */
+    public void setParallelism(int parallelism) {
+        List<String> providers;
+        synchronized (this) {
+            this.parallelism = Math.max(1, parallelism);
+            providers = new ArrayList<>(waiting.keySet());
+        }
+        for (String provider : providers) {
+            schedule(provider);
+        }
+    }
+
+    /**
+     * Things with the same authority share a limit, e.g. all folders under one DocumentsProvider
+     */
+    static String getProvider(String destinationDir) {
+        try {
+            String authority = new URI(destinationDir).getAuthority();
+            if (authority != null) {
+                return authority;
+            }
+        }
+        catch (Exception e) {
+            // Fall through
+        }
+        return destinationDir;
+    }
+
+    /**
+     * Read back the journal, must hold the lock
+     * Seeds nextId past every id in it, and rewrites it without the finished jobs
+     * @return the jobs which were restored, to be submitted by the caller
+     */
+    private List<Job> replay() throws IOException {
+        if (replayed) {
+            return Collections.emptyList();
+        }
+        Map<Long, Job> restored = new LinkedHashMap<>();
+        long maxId = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            while (true) {
+                byte type = in.readByte();
+                long id = in.readLong();
+                if (type == RECORD_ADDED) {
+                    String sourcePath = in.readUTF();
+                    String destinationDir = in.readUTF();
+                    int subfolderCount = in.readInt();
+                    List<String> subfolders = new ArrayList<>(subfolderCount);
+                    for (int i = 0; i < subfolderCount; i++) {
+                        subfolders.add(in.readUTF());
+                    }
+                    restored.put(id, new Job(id, sourcePath, destinationDir, subfolders, in.readUTF()));
+                }
+                else if (type == RECORD_DONE) {
+                    restored.remove(id);
+                }
+                else {
+                    throw new IOException("Unknown record type " + type);
+                }
+                maxId = Math.max(maxId, id);
+            }
+        }
+        catch (FileNotFoundException e) {
+            // Nothing saved yet
+        }
+        catch (EOFException e) {
+            // Either the end, or a record cut off by the process dying. Either way, what we have is good.
+        }
+        nextId = Math.max(nextId, maxId + 1);
+        List<Job> jobs = new ArrayList<>(restored.values());
+        for (Job job : jobs) {
+            pending.put(job.id, job);
+        }
+        // Rewrite it without the finished jobs
+        writeRecords(jobs, false);
+        replayed = true;
+        return jobs;
+    }
+
+    /**
+     * Pick up whatever was left in the journal by an earlier process
+     * Safe to call alongside enqueue, whichever comes first replays the journal
+     * @return the jobs which were restored, empty if enqueue already did it
+     */
+    public List<Job> resume() throws IOException {
+        List<Job> jobs;
+        synchronized (this) {
+            jobs = replay();
+        }
+        submit(jobs);
+        return jobs;
+    }
+
+    /**
+     * Journal and start saving a batch
+     * @return the job ids, in the same order
+     */
+    public List<Long> enqueue(String destinationDir, List<String> destinationSubfolders, List<String> sourcePaths, List<String> destinationNames) throws IOException {
+        List<Job> jobs = new ArrayList<>(sourcePaths.size());
+        List<Job> restored;
+        synchronized (this) {
+            // Ids must come after the journal's, and the restored jobs can't be lost when it's rewritten
+            restored = replay();
+            for (int i = 0; i < sourcePaths.size(); i++) {
+                jobs.add(new Job(nextId++, sourcePaths.get(i), destinationDir, destinationSubfolders, destinationNames.get(i)));
+            }
+            // Only one sync for the whole batch
+            writeRecords(jobs, true);
+            // Before leaving the lock, so that finish() doesn't clear the journal under us
+            for (Job job : jobs) {
+                pending.put(job.id, job);
+            }
+        }
+        submit(restored);
+        submit(jobs);
+        List<Long> ids = new ArrayList<>(jobs.size());
+        for (Job job : jobs) {
+            ids.add(job.id);
+        }
+        return ids;
+    }
+
+    public synchronized List<Job> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    private void writeRecords(List<Job> jobs, boolean append) throws IOException {
+        try (FileOutputStream file = new FileOutputStream(journal, append)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            for (Job job : jobs) {
+                out.writeByte(RECORD_ADDED);
+                out.writeLong(job.id);
+                out.writeUTF(job.sourcePath);
+                out.writeUTF(job.destinationDir);
+                out.writeInt(job.destinationSubfolders.size());
+                for (String subfolder : job.destinationSubfolders) {
+                    out.writeUTF(subfolder);
+                }
+                out.writeUTF(job.destinationName);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    private void submit(List<Job> jobs) {
+        List<String> providers = new ArrayList<>();
+        synchronized (this) {
+            for (Job job : jobs) {
+                String provider = getProvider(job.destinationDir);
+                ArrayDeque<Job> queue = waiting.get(provider);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    waiting.put(provider, queue);
+                    providers.add(provider);
+                }
+                queue.add(job);
+            }
+        }
+        for (String provider : providers) {
+            schedule(provider);
+        }
+    }
+
+    private void schedule(String provider) {
+        List<Job> toRun = new ArrayList<>();
+        synchronized (this) {
+            ArrayDeque<Job> queue = waiting.get(provider);
+            Integer count = running.get(provider);
+            int runningCount = count == null ? 0 : count;
+            while (queue != null && !queue.isEmpty() && runningCount < parallelism) {
+                toRun.add(queue.poll());
+                runningCount++;
+            }
+            running.put(provider, runningCount);
+            if (queue != null && queue.isEmpty()) {
+                waiting.remove(provider);
+            }
+        }
+        for (Job job : toRun) {
+            executor.execute(() -> run(provider, job));
+        }
+    }
+
+    private void run(String provider, Job job) {
+        Listener listener = this.listener;
+        try {
+            if (listener != null) {
+                listener.onStarted(job);
+            }
+            String name = null;
+            String errorCode = null;
+            String errorMessage = null;
+            try {
+                name = worker.save(job);
+            }
+            catch (StorageException e) {
+                errorCode = e.code;
+                errorMessage = e.getMessage();
+            }
+            catch (IOException e) {
+                errorCode = "IOException";
+                errorMessage = e.getMessage();
+            }
+            catch (RuntimeException e) {
+                errorCode = "JAVA_EXCEPTION";
+                errorMessage = e.getMessage();
+            }
+            finish(job);
+            if (listener == null) {
+                return;
+            }
+            if (errorCode != null) {
+                listener.onFailed(job, errorCode, errorMessage);
+            }
+            else {
+                listener.onCompleted(job, name);
+            }
+        }
+        finally {
+            synchronized (this) {
+                running.put(provider, running.get(provider) - 1);
+            }
+            schedule(provider);
+        }
+    }
+
+    /**
+     * Failures are finished too, retrying them on every launch would never end
+     */
+    private synchronized void finish(Job job) {
+        pending.remove(job.id);
+        try {
+            if (pending.isEmpty() && replayed) {
+                // Nothing left, start the journal again
+                new FileOutputStream(journal, false).close();
+                return;
+            }
+            // No sync, losing this just means saving it again
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journal, true))) {
+                out.writeByte(RECORD_DONE);
+                out.writeLong(job.id);
+            }
+        }
+        catch (IOException e) {
+            Logger.getLogger("SaveQueue").log(Level.WARNING, "Failed to journal completion", e);
+        }
+    }
+}
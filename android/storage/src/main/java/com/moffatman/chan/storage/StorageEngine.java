@@ -0,0 +1,367 @@
+package com.moffatman.chan.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Saves files into a DocumentTree, caching what it can to keep provider round-trips down
+ */
+public class StorageEngine<D> {
+    private final DocumentTree<D> tree;
+    private final MimeTypeLookup mimeTypes;
+    // Maps tree key + subfolder path to the resolved subfolder
+    private final Map<String, D> subfolderCache = lru(256);
+    // Maps directory key to its children by display name
+    private final Map<String, ChildNames<D>> childNameIndex = lru(16);
+    // Maps directory key to what is already saved there
+    private final Map<String, ContentIndex> contentIndex = lru(16);
+    private Executor indexExecutor;
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    private static final Pattern invalidDisplayNameCharacters = Pattern.compile("[\\\\/:*?\"<>|]");
+
+    private static class ChildNames<D> {
+        final Map<String, D> documents = new ConcurrentHashMap<>();
+        // Where to start looking for a free "name (N)", so repeated collisions don't rescan
+        final Map<String, Integer> nextSuffix = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * What saveFile did
+     */
+    public static class SavedFile {
+        public final String name;
+        // True if nothing was written, name is an existing file with the same contents
+        public final boolean deduplicated;
+
+        SavedFile(String name, boolean deduplicated) {
+            this.name = name;
+            this.deduplicated = deduplicated;
+        }
+    }
+
+    public StorageEngine(DocumentTree<D> tree, MimeTypeLookup mimeTypes) {
+        this.tree = tree;
+        this.mimeTypes = mimeTypes;
+    }
+
+    /**
+     * Allow saveFile to skip saving something when identical content is already in the directory
+     * @param indexExecutor where to build the index for a directory the first time it's saved to
+     */
+    public void enableDeduplication(Executor indexExecutor) {
+        this.indexExecutor = indexExecutor;
+    }
+
+    private static <K, V> Map<K, V> lru(int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    // Android does this when saving. So we need to look for the expected name.
+    public static String effectiveDisplayName(String name) {
+        return invalidDisplayNameCharacters.matcher(name).replaceAll("_");
+    }
+
+    /**
+     * False for anything which would be a path rather than a name
+     */
+    public static boolean isValidDisplayName(String name) {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..") && name.indexOf('/') < 0 && name.indexOf('\\') < 0 && name.indexOf('\0') < 0;
+    }
+
+    private String subfolderCacheKey(D root, List<String> subfolders, int depth) {
+        StringBuilder key = new StringBuilder(tree.getKey(root));
+        for (int i = 0; i < depth; i++) {
+            // Can't appear in a key or a filename
+            key.append('\0').append(subfolders.get(i));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Find or create the directory at root/subfolders
+     */
+    public D resolveDirectory(D root, List<String> subfolders) throws StorageException, IOException {
+        if (!tree.exists(root)) {
+            throw new StorageException("DirectoryNotFound", "Supplied directory does not exist");
+        }
+        D dir = root;
+        // Start from the deepest subfolder we have already resolved
+        int depth = subfolders.size();
+        while (depth > 0) {
+            D cached = subfolderCache.get(subfolderCacheKey(root, subfolders, depth));
+            if (cached != null) {
+                if (tree.isDirectory(cached)) {
+                    dir = cached;
+                }
+                else {
+                    // Something was moved or deleted from under us
+                    invalidateTree(root);
+                    depth = 0;
+                }
+                break;
+            }
+            depth--;
+        }
+        for (int i = depth; i < subfolders.size(); i++) {
+            String subdirName = subfolders.get(i);
+            if (!isValidDisplayName(effectiveDisplayName(subdirName))) {
+                throw new StorageException("FilenameProblem", "Invalid subfolder name \"" + subdirName + "\"");
+            }
+            D subdir = tree.findChild(dir, effectiveDisplayName(subdirName));
+            if (subdir != null && tree.isDirectory(subdir)) {
+                dir = subdir;
+            }
+            else {
+                dir = tree.createDirectory(dir, subdirName);
+                if (dir == null) {
+                    throw new StorageException("DirectoryNotFound", "Could not create subdirectory " + subdirName);
+                }
+            }
+            subfolderCache.put(subfolderCacheKey(root, subfolders, i + 1), dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Forget everything about root, to be used when a save there fails unexpectedly
+     */
+    public void invalidateTree(D root) {
+        String prefix = tree.getKey(root) + '\0';
+        synchronized (subfolderCache) {
+            subfolderCache.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+        // Can't tell which directories are in the tree
+        childNameIndex.clear();
+        contentIndex.clear();
+    }
+
+    /**
+     * Forget everything, to be used when the user picks a new directory
+     */
+    public void clear() {
+        subfolderCache.clear();
+        childNameIndex.clear();
+        contentIndex.clear();
+    }
+
+    /**
+     * Read what is in dir again, in the background
+     */
+    public void rebuildContentIndex(D dir) {
+        if (indexExecutor != null) {
+            startContentIndex(dir);
+        }
+    }
+
+    private ContentIndex startContentIndex(D dir) {
+        ContentIndex index = new ContentIndex();
+        contentIndex.put(tree.getKey(dir), index);
+        indexExecutor.execute(() -> {
+            try {
+                for (Map.Entry<String, Long> file : tree.listFileSizes(dir).entrySet()) {
+                    index.addIfAbsent(file.getKey(), file.getValue());
+                }
+            }
+            catch (Exception e) {
+                Logger.getLogger("StorageEngine").log(Level.WARNING, "Failed to index " + tree.getKey(dir), e);
+                contentIndex.remove(tree.getKey(dir));
+            }
+        });
+        return index;
+    }
+
+    /**
+     * Until it's been built, it only knows about what we saved since
+     */
+    private ContentIndex getContentIndex(D dir) {
+        synchronized (contentIndex) {
+            ContentIndex index = contentIndex.get(tree.getKey(dir));
+            if (index == null) {
+                index = startContentIndex(dir);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @return the name of a file in dir with the same contents as source, or null if there isn't one
+     */
+    private String findDuplicate(D dir, ContentIndex index, long size, byte[] sourceHash) throws IOException {
+        ChildNames<D> childNames = getChildNames(dir);
+        if (childNames == null) {
+            return null;
+        }
+        for (ContentIndex.Entry entry : index.getCandidates(size)) {
+            D existing = childNames.documents.get(entry.name);
+            if (existing == null) {
+                // Not there when we looked
+                index.remove(entry.name);
+                continue;
+            }
+            byte[] hash = entry.hash;
+            if (hash == null) {
+                try (ReadableByteChannel channel = tree.openForReading(existing)) {
+                    hash = ContentIndex.hash(channel);
+                }
+                catch (FileNotFoundException e) {
+                    hash = null;
+                }
+                entry.hash = hash;
+            }
+            if (Arrays.equals(hash, sourceHash)) {
+                // Only the match is checked, so this is one query per save at most
+                if (tree.exists(existing)) {
+                    return entry.name;
+                }
+            }
+            else if (hash != null) {
+                continue;
+            }
+            // Deleted since we looked
+            index.remove(entry.name);
+            childNames.documents.remove(entry.name);
+        }
+        return null;
+    }
+
+    /**
+     * Everything in dir, read with one query and then kept up to date as we save
+     */
+    private ChildNames<D> getChildNames(D dir) {
+        String key = tree.getKey(dir);
+        ChildNames<D> names = childNameIndex.get(key);
+        if (names != null) {
+            return names;
+        }
+        names = new ChildNames<>();
+        try {
+            names.documents.putAll(tree.listChildren(dir));
+        }
+        catch (Exception e) {
+            return null;
+        }
+        childNameIndex.put(key, names);
+        return names;
+    }
+
+    private static boolean isChildNameTaken(Set<String> childNames, String effectiveName, String extension, String mimeExtension) {
+        return childNames.contains(effectiveName + "." + extension)
+                || (mimeExtension != null && childNames.contains(effectiveName + "." + mimeExtension));
+    }
+
+    /**
+     * Copy source into a new file in dir
+     * @return the name it was saved with, which will be different if destinationName was taken
+     */
+    public String saveFile(D dir, File source, String destinationName) throws StorageException, IOException {
+        return saveFile(dir, source, destinationName, false).name;
+    }
+
+    /**
+     * @param deduplicate if enabled, return an existing file with the same contents instead of saving
+     */
+    public SavedFile saveFile(D dir, File source, String destinationName, boolean deduplicate) throws StorageException, IOException {
+        int dotPos = destinationName.lastIndexOf('.');
+        if (dotPos == -1) {
+            throw new StorageException("FilenameProblem", "Supplied filename has no file extension");
+        }
+        String extension = destinationName.substring(dotPos + 1);
+        String mimeType = mimeTypes.getMimeTypeFromExtension(extension);
+        String nameWithoutExtension = destinationName.substring(0, dotPos);
+        // Nothing to derive the extension from, so the provider has to be given it in the name
+        String keptExtension = "";
+        if (mimeType == null) {
+            mimeType = DEFAULT_MIME_TYPE;
+            keptExtension = "." + extension;
+        }
+        ContentIndex index = null;
+        long size = source.length();
+        byte[] sourceHash = null;
+        if (indexExecutor != null) {
+            index = getContentIndex(dir);
+            if (deduplicate && !index.getCandidates(size).isEmpty()) {
+                // Only worth reading the file when something is the same size
+                sourceHash = ContentIndex.hash(source);
+                String duplicate = findDuplicate(dir, index, size, sourceHash);
+                if (duplicate != null) {
+                    return new SavedFile(duplicate, true);
+                }
+            }
+        }
+        D file = null;
+        ChildNames<D> childNames = getChildNames(dir);
+        if (childNames != null) {
+            // The provider may append its own extension for the MIME type
+            String mimeExtension = keptExtension.isEmpty() ? mimeTypes.getExtensionFromMimeType(mimeType) : null;
+            String effectiveName = effectiveDisplayName(nameWithoutExtension);
+            String candidate = nameWithoutExtension;
+            if (isChildNameTaken(childNames.documents.keySet(), effectiveName, extension, mimeExtension)) {
+                Integer hint = childNames.nextSuffix.get(effectiveName);
+                int i = hint == null ? 1 : hint;
+                while (isChildNameTaken(childNames.documents.keySet(), effectiveName + " (" + i + ")", extension, mimeExtension)) {
+                    i++;
+                }
+                childNames.nextSuffix.put(effectiveName, i + 1);
+                candidate = nameWithoutExtension + " (" + i + ")";
+            }
+            file = tree.createFile(dir, mimeType, candidate + keptExtension);
+            if (file == null) {
+                // Out of date, someone else is writing here
+                childNameIndex.remove(tree.getKey(dir));
+                childNames = null;
+            }
+        }
+        if (file == null) {
+            file = tree.createFile(dir, mimeType, nameWithoutExtension + keptExtension);
+            // Android fails to create a unique filename if
+            // there is already ['name.ext', 'name (1).ext', ..., 'name (32).ext']
+            for (int i = 33; file == null; i += 32) {
+                // Although this creates ['name (33).ext', 'name (33) (1).ext', ... 'name (65).ext'],
+                // it's better than a crash
+                file = tree.createFile(dir, mimeType, String.format("%s (%d)%s", nameWithoutExtension, i, keptExtension));
+            }
+        }
+        String name = tree.getName(file);
+        if (childNames != null && name != null) {
+            childNames.documents.put(name, file);
+        }
+        try (DocumentTree.Sink sink = tree.openForWriting(file)) {
+            FileCopier.copy(source, sink);
+        }
+        catch (IOException | RuntimeException e) {
+            // Don't leave a truncated file behind, the caller may retry somewhere else
+            if (childNames != null && name != null) {
+                childNames.documents.remove(name);
+            }
+            try {
+                tree.delete(file);
+            }
+            catch (IOException | RuntimeException deleteError) {
+                e.addSuppressed(deleteError);
+            }
+            throw e;
+        }
+        if (index != null && name != null) {
+            index.add(name, size, sourceHash);
+        }
+        return new SavedFile(name, false);
+    }
+}
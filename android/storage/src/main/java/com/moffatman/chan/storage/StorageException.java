@@ -0,0 +1,14 @@
+package com.moffatman.chan.storage;
+
+/**
+ * A save problem with a code that gets passed straight through to Dart
+ */
+public class StorageException extends Exception {
+    private static final long serialVersionUID = 1L;
+    public final String code;
+
+    public StorageException(String code, String message) {
+        super(message);
+        this.code = code;
+    }
+}
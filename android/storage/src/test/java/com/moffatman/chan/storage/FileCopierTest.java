@@ -0,0 +1,215 @@
+package com.moffatman.chan.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class FileCopierTest {
+    /**
+     * Passes everything through to a real file, but fails once partway through a write
+     * Not a FileChannelImpl, so transferTo writes into it one buffer at a time
+     */
+    private static class FailingFileChannel extends FileChannel {
+        private final FileChannel file;
+        private long failAfter;
+
+        FailingFileChannel(FileChannel file, long failAfter) {
+            this.file = file;
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (failAfter >= 0 && file.position() + src.remaining() > failAfter) {
+                // Some of it lands before the failure
+                ByteBuffer partial = src.duplicate();
+                partial.limit(partial.position() + (int) (failAfter - file.position()));
+                file.write(partial);
+                failAfter = -1;
+                throw new IOException("Simulated failure");
+            }
+            return file.write(src);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return file.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return file.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            return file.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            file.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            file.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            file.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return file.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            file.close();
+        }
+    }
+
+    private final FileDocumentTree tree = new FileDocumentTree(MimeTypeLookup.BASIC);
+    private File source;
+    private File destination;
+    private byte[] contents;
+
+    @Before
+    public void setUp() throws IOException {
+        // Bigger than one transfer chunk
+        contents = new byte[20 * 1024 * 1024];
+        new Random(1).nextBytes(contents);
+        source = File.createTempFile("source", ".bin");
+        try (FileOutputStream stream = new FileOutputStream(source)) {
+            stream.write(contents);
+        }
+        destination = File.createTempFile("destination", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        source.delete();
+        destination.delete();
+    }
+
+    @Test
+    public void reportsProgressUpToTotal() throws IOException {
+        List<Long> reported = new ArrayList<>();
+        try (DocumentTree.Sink sink = tree.openForWriting(destination)) {
+            assertEquals(contents.length, FileCopier.copy(source, sink, (copied, total) -> {
+                assertEquals(contents.length, total);
+                reported.add(copied);
+                return true;
+            }));
+        }
+        assertEquals(0L, (long) reported.get(0));
+        assertEquals(contents.length, (long) reported.get(reported.size() - 1));
+        assertTrue(reported.size() > 2);
+        for (int i = 1; i < reported.size(); i++) {
+            assertTrue(reported.get(i) >= reported.get(i - 1));
+        }
+        assertArrayEquals(contents, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void stopsWhenCancelled() throws IOException {
+        try (DocumentTree.Sink sink = tree.openForWriting(destination)) {
+            FileCopier.copy(source, sink, (copied, total) -> copied == 0);
+            fail("Copy should have been cancelled");
+        }
+        catch (InterruptedIOException e) {
+            // Expected
+        }
+        assertTrue(destination.length() < contents.length);
+    }
+
+    @Test
+    public void fallbackRewindsPartialTransfer() throws IOException {
+        // Fails at the start of the second piece, transferTo only throws if nothing was counted yet
+        try (FailingFileChannel channel = new FailingFileChannel(new RandomAccessFile(destination, "rw").getChannel(), 8 * 1024 * 1024 + 123)) {
+            assertEquals(contents.length, FileCopier.copy(source, new DocumentTree.Sink() {
+                @Override
+                public WritableByteChannel getChannel() {
+                    return channel;
+                }
+
+                @Override
+                public boolean isRegularFile() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+
+                }
+            }));
+        }
+        assertArrayEquals(contents, Files.readAllBytes(destination.toPath()));
+    }
+}
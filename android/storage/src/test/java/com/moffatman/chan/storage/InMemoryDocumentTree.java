@@ -0,0 +1,207 @@
+package com.moffatman.chan.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fake provider which counts round-trips, so tests can check how many a save costs
+ * Names new files and directories the same way Android's ExternalStorageProvider does
+ */
+public class InMemoryDocumentTree implements DocumentTree<InMemoryDocumentTree.Node> {
+    public static class Node {
+        final Node parent;
+        final String name;
+        final String key;
+        final Map<String, Node> children;
+        byte[] contents;
+
+        Node(Node parent, String name, boolean directory) {
+            this.parent = parent;
+            this.name = name;
+            this.key = parent == null ? name : parent.key + "/" + name;
+            this.children = directory ? new LinkedHashMap<>() : null;
+        }
+
+        public byte[] getContents() {
+            return contents;
+        }
+    }
+
+    private final MimeTypeLookup mimeTypes;
+    public final Node root = new Node(null, "root", true);
+    public final AtomicLong roundTrips = new AtomicLong();
+    private final long roundTripNanos;
+
+    public InMemoryDocumentTree(MimeTypeLookup mimeTypes) {
+        this(mimeTypes, 0);
+    }
+
+    /**
+     * @param roundTripNanos simulated IPC latency added to every call
+     */
+    public InMemoryDocumentTree(MimeTypeLookup mimeTypes, long roundTripNanos) {
+        this.mimeTypes = mimeTypes;
+        this.roundTripNanos = roundTripNanos;
+    }
+
+    private void roundTrip() {
+        roundTrips.incrementAndGet();
+        if (roundTripNanos > 0) {
+            LockSupport.parkNanos(roundTripNanos);
+        }
+    }
+
+    private static boolean isAttached(Node node) {
+        while (node.parent != null) {
+            if (node.parent.children.get(node.name) != node) {
+                return false;
+            }
+            node = node.parent;
+        }
+        return true;
+    }
+
+    /**
+     * Add an existing file, without counting it as a round-trip
+     */
+    public synchronized Node put(Node parent, String name) {
+        return put(parent, name, new byte[0]);
+    }
+
+    public synchronized Node put(Node parent, String name, byte[] contents) {
+        Node node = new Node(parent, name, false);
+        node.contents = contents;
+        parent.children.put(name, node);
+        return node;
+    }
+
+    /**
+     * Simulate someone deleting a document behind our back
+     */
+    public synchronized void remove(Node node) {
+        node.parent.children.remove(node.name);
+    }
+
+    public synchronized Node get(Node parent, String name) {
+        return parent.children.get(name);
+    }
+
+    @Override
+    public String getKey(Node document) {
+        return document.key;
+    }
+
+    @Override
+    public synchronized boolean exists(Node document) {
+        roundTrip();
+        return isAttached(document);
+    }
+
+    @Override
+    public synchronized boolean isDirectory(Node document) {
+        roundTrip();
+        return isAttached(document) && document.children != null;
+    }
+
+    @Override
+    public synchronized Node findChild(Node parent, String displayName) {
+        roundTrip();
+        return parent.children.get(displayName);
+    }
+
+    @Override
+    public synchronized Map<String, Node> listChildren(Node parent) {
+        roundTrip();
+        return new HashMap<>(parent.children);
+    }
+
+    @Override
+    public synchronized Map<String, Long> listFileSizes(Node parent) {
+        roundTrip();
+        Map<String, Long> sizes = new HashMap<>();
+        for (Node child : parent.children.values()) {
+            if (child.children == null) {
+                sizes.put(child.name, child.contents == null ? 0L : child.contents.length);
+            }
+        }
+        return sizes;
+    }
+
+    private Node create(Node parent, String name, String suffix, boolean directory) {
+        name = StorageEngine.effectiveDisplayName(name);
+        String uniqueName = name + suffix;
+        for (int i = 1; parent.children.containsKey(uniqueName); i++) {
+            if (i > 32) {
+                return null;
+            }
+            uniqueName = name + " (" + i + ")" + suffix;
+        }
+        Node node = new Node(parent, uniqueName, directory);
+        parent.children.put(uniqueName, node);
+        return node;
+    }
+
+    @Override
+    public synchronized Node createDirectory(Node parent, String displayName) {
+        roundTrip();
+        return create(parent, displayName, "", true);
+    }
+
+    @Override
+    public synchronized Node createFile(Node parent, String mimeType, String displayName) {
+        roundTrip();
+        String extension = mimeType == null ? null : mimeTypes.getExtensionFromMimeType(mimeType);
+        return create(parent, displayName, extension == null ? "" : "." + extension, false);
+    }
+
+    @Override
+    public synchronized boolean delete(Node document) {
+        roundTrip();
+        return isAttached(document) && document.parent.children.remove(document.name) != null;
+    }
+
+    @Override
+    public String getName(Node document) {
+        roundTrip();
+        return document.name;
+    }
+
+    @Override
+    public Sink openForWriting(Node document) {
+        roundTrip();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(stream);
+        return new Sink() {
+            @Override
+            public WritableByteChannel getChannel() {
+                return channel;
+            }
+
+            @Override
+            public boolean isRegularFile() {
+                return false;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+                document.contents = stream.toByteArray();
+            }
+        };
+    }
+
+    @Override
+    public synchronized ReadableByteChannel openForReading(Node document) {
+        roundTrip();
+        return Channels.newChannel(new ByteArrayInputStream(document.contents));
+    }
+}
@@ -0,0 +1,226 @@
+package com.moffatman.chan.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SaveQueueTest {
+    private static final String TREE_A = "content://a.documents/tree/primary%3ADownload";
+    private static final String TREE_B = "content://b.documents/tree/root";
+    private File journal;
+    private ExecutorService executor;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private CountDownLatch finished;
+    // Holds up jobs from a queue whose process "died", released in tearDown
+    private final CountDownLatch never = new CountDownLatch(1);
+    private final List<SaveQueue> queues = new ArrayList<>();
+
+    private final SaveQueue.Listener listener = new SaveQueue.Listener() {
+        @Override
+        public void onStarted(SaveQueue.Job job) {
+
+        }
+
+        @Override
+        public void onCompleted(SaveQueue.Job job, String name) {
+            events.add(job.id + ":" + name);
+            finished.countDown();
+        }
+
+        @Override
+        public void onFailed(SaveQueue.Job job, String code, String message) {
+            events.add(job.id + ":" + code);
+            finished.countDown();
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        journal = File.createTempFile("saveQueue", ".journal");
+        journal.delete();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        // Let everything finish, interrupting would leave jobs trying to schedule on a dead executor
+        never.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        for (SaveQueue queue : queues) {
+            while (!queue.getPending().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        journal.delete();
+    }
+
+    private SaveQueue newQueue(SaveQueue.Worker worker, int parallelism) {
+        SaveQueue queue = new SaveQueue(journal, worker, executor, parallelism);
+        queues.add(queue);
+        return queue;
+    }
+
+    private static List<String> names(String prefix, int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(prefix + i + ".jpg");
+        }
+        return names;
+    }
+
+    @Test
+    public void savesEverythingAndReportsFailures() throws Exception {
+        finished = new CountDownLatch(3);
+        SaveQueue queue = newQueue(job -> {
+            if (job.destinationName.equals("b1.jpg")) {
+                throw new StorageException("FilenameProblem", "bad");
+            }
+            return job.destinationName;
+        }, 2);
+        queue.setListener(listener);
+        List<Long> ids = queue.enqueue(TREE_A, Collections.singletonList("sub"), names("a", 3), names("b", 3));
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertTrue(events.contains(ids.get(0) + ":b0.jpg"));
+        assertTrue(events.contains(ids.get(1) + ":FilenameProblem"));
+        assertTrue(events.contains(ids.get(2) + ":b2.jpg"));
+        assertTrue(queue.getPending().isEmpty());
+        assertEquals(0, journal.length());
+    }
+
+    @Test
+    public void limitsParallelismPerProvider() throws Exception {
+        int parallelism = 2;
+        ConcurrentHashMap<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, Integer> maxRunning = new ConcurrentHashMap<>();
+        finished = new CountDownLatch(20);
+        SaveQueue queue = newQueue(job -> {
+            String provider = SaveQueue.getProvider(job.destinationDir);
+            int now = running.computeIfAbsent(provider, p -> new AtomicInteger()).incrementAndGet();
+            maxRunning.merge(provider, now, Math::max);
+            try {
+                Thread.sleep(5);
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            running.get(provider).decrementAndGet();
+            return job.destinationName;
+        }, parallelism);
+        queue.setListener(listener);
+        queue.enqueue(TREE_A, Collections.emptyList(), names("a", 10), names("a", 10));
+        queue.enqueue(TREE_B, Collections.emptyList(), names("b", 10), names("b", 10));
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(parallelism, (int) maxRunning.get("a.documents"));
+        assertEquals(parallelism, (int) maxRunning.get("b.documents"));
+    }
+
+    @Test
+    public void resumesAfterRestart() throws Exception {
+        finished = new CountDownLatch(1);
+        SaveQueue dying = newQueue(job -> {
+            if (job.destinationName.equals("done.jpg")) {
+                return job.destinationName;
+            }
+            try {
+                // Process dies in the middle of these
+                never.await();
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return job.destinationName;
+        }, 1);
+        dying.setListener(listener);
+        dying.enqueue(TREE_A, Collections.singletonList("sub"), Collections.singletonList("/done"), Collections.singletonList("done.jpg"));
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        dying.enqueue(TREE_A, Arrays.asList("sub", "deeper"), names("/source", 3), names("pending", 3));
+
+        events.clear();
+        finished = new CountDownLatch(3);
+        SaveQueue restarted = newQueue(job -> job.destinationName + " in " + job.destinationSubfolders, 2);
+        restarted.setListener(listener);
+        List<SaveQueue.Job> restored = restarted.resume();
+        assertEquals(3, restored.size());
+        assertEquals("/source0.jpg", restored.get(0).sourcePath);
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertTrue(events.contains(restored.get(2).id + ":pending2.jpg in [sub, deeper]"));
+        // New ids don't clash with the restored ones
+        finished = new CountDownLatch(1);
+        List<Long> ids = restarted.enqueue(TREE_A, Collections.emptyList(), names("/new", 1), names("new", 1));
+        assertTrue(ids.get(0) > restored.get(2).id);
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void enqueueBeforeResumeKeepsRestoredJobs() throws Exception {
+        SaveQueue dying = newQueue(job -> {
+            try {
+                never.await();
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return job.destinationName;
+        }, 1);
+        List<Long> oldIds = dying.enqueue(TREE_A, Collections.emptyList(), names("/source", 2), names("pending", 2));
+
+        finished = new CountDownLatch(3);
+        SaveQueue restarted = newQueue(job -> job.destinationName, 1);
+        restarted.setListener(listener);
+        // Races ahead of resume
+        List<Long> ids = restarted.enqueue(TREE_A, Collections.emptyList(), names("/new", 1), names("new", 1));
+        assertTrue(ids.get(0) > oldIds.get(1));
+        assertTrue(restarted.resume().isEmpty());
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertTrue(events.contains(oldIds.get(0) + ":pending0.jpg"));
+        assertTrue(events.contains(oldIds.get(1) + ":pending1.jpg"));
+        assertTrue(events.contains(ids.get(0) + ":new0.jpg"));
+    }
+
+    @Test
+    public void toleratesTornJournal() throws Exception {
+        SaveQueue dying = newQueue(job -> {
+            try {
+                never.await();
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return job.destinationName;
+        }, 1);
+        dying.enqueue(TREE_A, Collections.emptyList(), names("/source", 2), names("pending", 2));
+        // Died half way through writing a third
+        long length = journal.length();
+        try (FileOutputStream out = new FileOutputStream(journal, true)) {
+            out.write(new byte[]{'A', 0, 0, 0});
+        }
+        finished = new CountDownLatch(2);
+        SaveQueue restarted = newQueue(job -> job.destinationName, 1);
+        restarted.setListener(listener);
+        assertEquals(2, restarted.resume().size());
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        try (RandomAccessFile file = new RandomAccessFile(journal, "r")) {
+            assertTrue(file.length() < length || file.length() == 0);
+        }
+    }
+}
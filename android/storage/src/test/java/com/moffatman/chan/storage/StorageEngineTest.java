@@ -0,0 +1,245 @@
+package com.moffatman.chan.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class StorageEngineTest {
+    private InMemoryDocumentTree tree;
+    private StorageEngine<InMemoryDocumentTree.Node> engine;
+    private File source;
+    private final byte[] sourceContents = new byte[]{1, 2, 3, 4, 5};
+
+    @Before
+    public void setUp() throws IOException {
+        tree = new InMemoryDocumentTree(MimeTypeLookup.BASIC);
+        engine = new StorageEngine<>(tree, MimeTypeLookup.BASIC);
+        source = File.createTempFile("source", ".jpg");
+        try (FileOutputStream stream = new FileOutputStream(source)) {
+            stream.write(sourceContents);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        source.delete();
+    }
+
+    @Test
+    public void savesIntoNestedSubfolders() throws Exception {
+        List<String> subfolders = Arrays.asList("a", "b", "c");
+        InMemoryDocumentTree.Node dir = engine.resolveDirectory(tree.root, subfolders);
+        assertEquals("image.jpg", engine.saveFile(dir, source, "image.jpg"));
+        InMemoryDocumentTree.Node a = tree.get(tree.root, "a");
+        InMemoryDocumentTree.Node b = tree.get(a, "b");
+        InMemoryDocumentTree.Node c = tree.get(b, "c");
+        assertSame(dir, c);
+        assertArrayEquals(sourceContents, tree.get(c, "image.jpg").getContents());
+    }
+
+    @Test
+    public void cachedSubfoldersSkipLookups() throws Exception {
+        List<String> subfolders = Arrays.asList("a", "b", "c", "d");
+        InMemoryDocumentTree.Node first = engine.resolveDirectory(tree.root, subfolders);
+        tree.roundTrips.set(0);
+        InMemoryDocumentTree.Node second = engine.resolveDirectory(tree.root, subfolders);
+        assertSame(first, second);
+        // Root exists + deepest cached isDirectory
+        assertEquals(2, tree.roundTrips.get());
+    }
+
+    @Test
+    public void staleSubfolderIsRecreated() throws Exception {
+        List<String> subfolders = Arrays.asList("a", "b");
+        InMemoryDocumentTree.Node first = engine.resolveDirectory(tree.root, subfolders);
+        tree.remove(tree.get(tree.root, "a"));
+        InMemoryDocumentTree.Node second = engine.resolveDirectory(tree.root, subfolders);
+        assertTrue(second != first);
+        assertSame(second, tree.get(tree.get(tree.root, "a"), "b"));
+    }
+
+    @Test
+    public void collisionsPickNextFreeName() throws Exception {
+        tree.put(tree.root, "image.jpg");
+        for (int i = 1; i <= 40; i++) {
+            tree.put(tree.root, "image (" + i + ").jpg");
+        }
+        assertEquals("image (41).jpg", engine.saveFile(tree.root, source, "image.jpg"));
+        tree.roundTrips.set(0);
+        assertEquals("image (42).jpg", engine.saveFile(tree.root, source, "image.jpg"));
+        // createFile + getName + openForWriting, no retries or listing
+        assertEquals(3, tree.roundTrips.get());
+    }
+
+    @Test
+    public void extensionFollowsMimeType() throws Exception {
+        tree.put(tree.root, "photo.jpg");
+        assertEquals("photo (1).jpg", engine.saveFile(tree.root, source, "photo.jpeg"));
+    }
+
+    @Test
+    public void outOfDateIndexFallsBackToProvider() throws Exception {
+        assertEquals("image.jpg", engine.saveFile(tree.root, source, "image.jpg"));
+        // Someone else takes our pick, and every name the provider would try instead
+        tree.put(tree.root, "image (1).jpg");
+        for (int i = 1; i <= 32; i++) {
+            tree.put(tree.root, "image (1) (" + i + ").jpg");
+        }
+        assertEquals("image (2).jpg", engine.saveFile(tree.root, source, "image.jpg"));
+    }
+
+    @Test
+    public void identicalContentIsNotSavedAgain() throws Exception {
+        engine.enableDeduplication(Runnable::run);
+        tree.put(tree.root, "same size.jpg", new byte[]{5, 4, 3, 2, 1});
+        tree.put(tree.root, "other.jpg", new byte[]{1, 2});
+        assertEquals("image.jpg", engine.saveFile(tree.root, source, "image.jpg", true).name);
+        tree.roundTrips.set(0);
+        StorageEngine.SavedFile saved = engine.saveFile(tree.root, source, "repost.jpg", true);
+        assertEquals("image.jpg", saved.name);
+        assertTrue(saved.deduplicated);
+        // Only exists for the match, candidates come from the listing and both were hashed the first time
+        assertEquals(1, tree.roundTrips.get());
+        assertNull(tree.get(tree.root, "repost.jpg"));
+    }
+
+    @Test
+    public void deduplicationIsOptIn() throws Exception {
+        engine.enableDeduplication(Runnable::run);
+        tree.put(tree.root, "old.jpg", sourceContents.clone());
+        StorageEngine.SavedFile saved = engine.saveFile(tree.root, source, "image.jpg", false);
+        assertEquals("image.jpg", saved.name);
+        assertFalse(saved.deduplicated);
+        assertEquals("export.jpg", engine.saveFile(tree.root, source, "export.jpg"));
+    }
+
+    @Test
+    public void deduplicatesAgainstExistingFiles() throws Exception {
+        engine.enableDeduplication(Runnable::run);
+        tree.put(tree.root, "old.jpg", sourceContents.clone());
+        assertEquals("old.jpg", engine.saveFile(tree.root, source, "image.jpg", true).name);
+        // Gone since it was indexed
+        tree.remove(tree.get(tree.root, "old.jpg"));
+        assertEquals("image.jpg", engine.saveFile(tree.root, source, "image.jpg", true).name);
+    }
+
+    @Test
+    public void indexIsBuiltInBackground() throws Exception {
+        List<Runnable> background = new ArrayList<>();
+        engine.enableDeduplication(background::add);
+        tree.put(tree.root, "old.jpg", sourceContents.clone());
+        // Not indexed yet, but what we save is still tracked
+        assertEquals("image.jpg", engine.saveFile(tree.root, source, "image.jpg", true).name);
+        assertEquals("image.jpg", engine.saveFile(tree.root, source, "image.jpg", true).name);
+        assertEquals(1, background.size());
+        background.get(0).run();
+        engine.rebuildContentIndex(tree.root);
+        background.get(1).run();
+        // Either is fine, they are the same
+        String name = engine.saveFile(tree.root, source, "new.jpg", true).name;
+        assertTrue(name.equals("old.jpg") || name.equals("image.jpg"));
+        assertNull(tree.get(tree.root, "new.jpg"));
+    }
+
+    @Test(expected = StorageException.class)
+    public void rejectsNameWithoutExtension() throws Exception {
+        engine.saveFile(tree.root, source, "image");
+    }
+
+    @Test
+    public void missingRootIsDirectoryNotFound() throws Exception {
+        InMemoryDocumentTree.Node dir = engine.resolveDirectory(tree.root, Collections.singletonList("gone"));
+        tree.remove(dir);
+        try {
+            engine.resolveDirectory(dir, Collections.emptyList());
+        }
+        catch (StorageException e) {
+            assertEquals("DirectoryNotFound", e.code);
+            return;
+        }
+        throw new AssertionError("Expected StorageException");
+    }
+
+    @Test
+    public void failedCopyIsDeleted() throws Exception {
+        // Builds the child name index, which has to forget the file too
+        engine.saveFile(tree.root, source, "other.jpg");
+        try {
+            engine.saveFile(tree.root, new File(source.getPath() + ".missing"), "image.jpg");
+        }
+        catch (IOException e) {
+            assertNull(tree.get(tree.root, "image.jpg"));
+            assertEquals("image.jpg", engine.saveFile(tree.root, source, "image.jpg"));
+            return;
+        }
+        throw new AssertionError("Expected IOException");
+    }
+
+    @Test
+    public void unknownExtensionIsKept() throws Exception {
+        assertEquals("archive.xyz", engine.saveFile(tree.root, source, "archive.xyz"));
+        assertEquals("archive (1).xyz", engine.saveFile(tree.root, source, "archive.xyz"));
+    }
+
+    @Test
+    public void rejectsSubfoldersOutsideTheTree() throws Exception {
+        for (String name : Arrays.asList("..", ".", "")) {
+            try {
+                engine.resolveDirectory(tree.root, Arrays.asList("a", name));
+            }
+            catch (StorageException e) {
+                assertEquals("FilenameProblem", e.code);
+                continue;
+            }
+            throw new AssertionError("Expected StorageException for \"" + name + "\"");
+        }
+    }
+
+    @Test
+    public void filesystemStaysInsideTheTree() throws Exception {
+        File root = Files.createTempDirectory("storage").toFile();
+        try {
+            StorageEngine<File> fileEngine = new StorageEngine<>(new FileDocumentTree(MimeTypeLookup.BASIC), MimeTypeLookup.BASIC);
+            File dir = fileEngine.resolveDirectory(root, Collections.singletonList("../escaped"));
+            assertEquals(root.getCanonicalFile(), dir.getCanonicalFile().getParentFile());
+            assertEquals("archive.xyz", fileEngine.saveFile(dir, source, "archive.xyz"));
+            assertEquals("archive (1).xyz", fileEngine.saveFile(dir, source, "archive.xyz"));
+            assertEquals(".._.._x.jpg", fileEngine.saveFile(dir, source, "../../x.jpg"));
+        }
+        finally {
+            Files.walk(root.toPath()).sorted(Collections.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void savesToFilesystem() throws Exception {
+        File root = Files.createTempDirectory("storage").toFile();
+        try {
+            StorageEngine<File> fileEngine = new StorageEngine<>(new FileDocumentTree(MimeTypeLookup.BASIC), MimeTypeLookup.BASIC);
+            File dir = fileEngine.resolveDirectory(root, Arrays.asList("x", "y"));
+            assertEquals("image.jpg", fileEngine.saveFile(dir, source, "image.jpg"));
+            assertEquals("image (1).jpg", fileEngine.saveFile(dir, source, "image.jpg"));
+            assertArrayEquals(sourceContents, Files.readAllBytes(new File(dir, "image (1).jpg").toPath()));
+            assertNull(new FileDocumentTree(MimeTypeLookup.BASIC).findChild(dir, "nothing.jpg"));
+        }
+        finally {
+            Files.walk(root.toPath()).sorted(Collections.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+}
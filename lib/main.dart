@@ -199,6 +199,7 @@ class ChanFailedApp extends StatelessWidget {
 										if (dst == null) {
 											return;
 										}
+										final batches = <String, ({List<String> subfolders, List<SaveFilesItem> files})>{};
 										await for (final child in src.list(recursive: true)) {
 											if (child.statSync().type != FileSystemEntityType.file) {
 												continue;
@@ -207,12 +208,30 @@ class ChanFailedApp extends StatelessWidget {
 											final parts = path.split('/');
 											parts.removeWhere((p) => p.isEmpty);
 											final filename = parts.removeLast();
-											await saveFile(
-												destinationDir: dst,
-												destinationSubfolders: parts,
+											batches.putIfAbsent(parts.join('/'), () => (subfolders: parts, files: [])).files.add((
 												sourcePath: child.absolute.path,
 												destinationName: filename
-											);
+											));
+										}
+										final tracker = SaveQueueTracker();
+										final Map<int, SaveFilesResult> results;
+										try {
+											for (final batch in batches.values) {
+												await tracker.enqueue(
+													destinationDir: dst,
+													destinationSubfolders: batch.subfolders,
+													files: batch.files
+												);
+											}
+											results = await tracker.wait();
+										}
+										finally {
+											await tracker.dispose();
+										}
+										for (final result in results.values) {
+											if (result.error case PlatformException error) {
+												throw error;
+											}
 										}
 										if (context.mounted) {
 											showCupertinoDialog(
@@ -1720,6 +1739,37 @@ class _ChanHomePageState extends State<ChanHomePage> {
 		}
 	}
 
+	/// The save queue carries on with what the last process didn't finish, let the user know how it went
+	Future<void> _followResumedSaves() async {
+		// Listen before asking, so nothing can finish in between
+		final tracker = SaveQueueTracker();
+		try {
+			final ids = await getPendingSaves();
+			if (ids.isEmpty) {
+				return;
+			}
+			tracker.track(ids);
+			final results = await tracker.wait();
+			if (!mounted) {
+				return;
+			}
+			final failedCount = results.values.where((r) => r.error != null).length;
+			showToast(
+				context: context,
+				icon: failedCount == 0 ? CupertinoIcons.cloud_download : CupertinoIcons.exclamationmark_triangle,
+				message: failedCount == 0 ?
+					'Finished saving ${describeCount(results.length, 'file')} from last time' :
+					'Failed to save ${describeCount(failedCount, 'file')} from last time'
+			);
+		}
+		catch (e, st) {
+			Future.error(e, st); // Report to crashlytics
+		}
+		finally {
+			await tracker.dispose();
+		}
+	}
+
 	Future<void> _setAdditionalSafeAreaInsets() async {
 		await setAdditionalSafeAreaInsets('main', EdgeInsets.only(
 			bottom: 60 + 44 + (_showTabPopup.value ? 80 : 0)
@@ -1757,6 +1807,9 @@ class _ChanHomePageState extends State<ChanHomePage> {
 		}
 		// Set initial tab list up right
 		Future.microtask(() => _tabs._animateTabList(duration: Duration.zero));
+		if (Platform.isAndroid) {
+			_followResumedSaves();
+		}
 		_setAdditionalSafeAreaInsets();
 		ScrollTracker.instance.slowScrollDirection.addListener(_onSlowScrollDirectionChange);
 		if (Persistence.settings.launchCount > 5 && !Persistence.settings.promptedAboutCrashlytics && !_promptedAboutCrashlytics) {
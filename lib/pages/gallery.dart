@@ -1,4 +1,5 @@
 import 'dart:async';
+import 'dart:io';
 import 'dart:math' as math;
 import 'dart:math';
 import 'dart:ui';
@@ -46,6 +47,8 @@ import 'package:home_indicator/home_indicator.dart';
 import 'package:url_launcher/url_launcher.dart';
 
 const double _thumbnailSize = 60;
+// Handed over together when downloading all to the Android gallery or save queue
+const int _saveBatchSize = 10;
 
 class GalleryLeftIntent extends Intent {
 	const GalleryLeftIntent();
@@ -564,21 +567,102 @@ class _GalleryPageState extends State<GalleryPage> {
 		if (!mounted || !shouldDownload) {
 			return;
 		}
+		final destination = dir ?? Settings.gallerySavePathSetting.value;
+		// Insert them into MediaStore together, instead of one at a time
+		final batchToGallery = destination != null && destination.startsWith(kGallerySavePathGalleryPrefix) && Platform.isAndroid;
+		// Saved by the native queue, which carries on if the app is killed part way through
+		final queueToFolder = destination != null && !destination.startsWith(kGallerySavePathGalleryPrefix) && Platform.isAndroid;
 		await modalLoad(context, 'Bulk Download', (controller) async {
 			int downloaded = 0;
 			final failed = <Attachment, String>{};
-			for (final attachment in toDownload) {
-				if (controller.cancelToken.isCancelled) return failed;
-				try {
-					await _getController(attachment).preloadFullAttachment();
-					await _getController(attachment).download(dir: dir, force: force);
+			// Only counted until the results are matched up at the end
+			int queueFailed = 0;
+			void updateProgress() {
+				final failedCount = failed.length + queueFailed;
+				controller.progress.value = ('$downloaded${failedCount == 0 ? '' : ' (${describeCount(failedCount, 'error')})'} / ${toDownload.length}', (downloaded + failedCount) / toDownload.length);
+			}
+			final tracker = queueToFolder ? SaveQueueTracker(onResult: (id, result) {
+				if (result.error != null) {
+					queueFailed++;
+				}
+				else {
 					downloaded++;
 				}
+				updateProgress();
+			}) : null;
+			final queued = <int, AttachmentViewerController>{};
+			final toBatch = <AttachmentViewerController>[];
+			Future<void> flushBatch() async {
+				final batch = toBatch.toList();
+				toBatch.clear();
+				try {
+					if (tracker != null) {
+						queued.addAll(await AttachmentViewerController.enqueueAllToAndroidFolder(tracker, batch, destination: destination!, useDestinationFolder: dir != null));
+						return;
+					}
+					final batchFailed = await AttachmentViewerController.downloadAllToAndroidGallery(batch, destination: destination!, useDestinationAlbum: dir != null);
+					downloaded += batch.length - batchFailed.length;
+					for (final entry in batchFailed.entries) {
+						failed[entry.key.attachment] = entry.value.toStringDio();
+					}
+				}
 				catch (e, st) {
 					Future.error(e, st);
-					failed[attachment.attachment] = e.toStringDio();
+					if (dir == null && (e is DirectoryNotFoundException || e is InsufficientPermissionException)) {
+						// Same as download(), make them pick again next time
+						Settings.gallerySavePathSetting.value = null;
+					}
+					for (final controller in batch) {
+						failed[controller.attachment] = e.toStringDio();
+					}
 				}
-				controller.progress.value = ('$downloaded${failed.isEmpty ? '' : ' (${describeCount(failed.length, 'error')})'} / ${toDownload.length}', (downloaded + failed.length) / toDownload.length);
+			}
+			try {
+				for (final attachment in toDownload) {
+					if (controller.cancelToken.isCancelled) return failed;
+					try {
+						await _getController(attachment).preloadFullAttachment();
+						if (batchToGallery || queueToFolder) {
+							toBatch.add(_getController(attachment));
+							if (toBatch.length >= _saveBatchSize) {
+								// Batched for fewer round-trips, but not so much that progress stalls
+								await flushBatch();
+							}
+						}
+						else {
+							await _getController(attachment).download(dir: dir, force: force);
+							downloaded++;
+						}
+					}
+					catch (e, st) {
+						Future.error(e, st);
+						failed[attachment.attachment] = e.toStringDio();
+					}
+					updateProgress();
+				}
+				if (toBatch.isNotEmpty) {
+					if (controller.cancelToken.isCancelled) return failed;
+					await flushBatch();
+					updateProgress();
+				}
+				if (tracker != null) {
+					final results = await Future.any<Map<int, SaveFilesResult>?>([
+						tracker.wait(),
+						// Only stops waiting, the queue still saves them
+						controller.cancelToken.whenCancel.then((_) => null)
+					]);
+					if (results == null) return failed;
+					for (final entry in queued.entries) {
+						final result = results[entry.key]!;
+						entry.value.onQueuedDownloadResult(result);
+						if (result.error case PlatformException error) {
+							failed[entry.value.attachment] = error.toStringDio();
+						}
+					}
+				}
+			}
+			finally {
+				await tracker?.dispose();
 			}
 			if (failed.isNotEmpty) {
 				throw Exception('Some attachments failed: $failed');
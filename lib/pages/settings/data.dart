@@ -5,6 +5,7 @@ import 'package:chan/services/default_user_agent.dart';
 import 'package:chan/services/edit_site_board_map.dart';
 import 'package:chan/services/imageboard.dart';
 import 'package:chan/services/import_export.dart';
+import 'package:chan/services/native_metrics.dart';
 import 'package:chan/services/network_logging.dart';
 import 'package:chan/services/persistence.dart';
 import 'package:chan/services/pick_attachment.dart';
@@ -804,6 +805,22 @@ final dataSettings = [
 			}
 		}
 	),
+	if (Platform.isAndroid) SimpleButtonSettingWidget(
+		description: 'Send native call timings',
+		icon: CupertinoIcons.timer,
+		onPressed: (context) async {
+			final file = await dumpNativeCallMetrics();
+			if (!context.mounted) {
+				return;
+			}
+			await shareOne(
+				context: context,
+				text: file.path,
+				type: 'file',
+				sharePositionOrigin: null
+			);
+		}
+	),
 	SimpleButtonSettingWidget(
 		description: 'Send network logs',
 		icon: CupertinoIcons.share,
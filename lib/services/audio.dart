@@ -1,8 +1,32 @@
+import 'dart:async';
+import 'dart:io';
+
 import 'package:flutter/services.dart';
 
 const _platform = MethodChannel('com.moffatman.chan/audio');
+const _events = EventChannel('com.moffatman.chan/audioEvents');
+
+bool? _headphonesPluggedIn;
+StreamSubscription<dynamic>? _headphonesSubscription;
+
+void _listenForHeadphones() {
+	if (!Platform.isAndroid || _headphonesSubscription != null) {
+		return;
+	}
+	_headphonesSubscription = _events.receiveBroadcastStream().listen((event) {
+		_headphonesPluggedIn = event as bool;
+	}, onError: (Object e, StackTrace st) {
+		_headphonesPluggedIn = null;
+		Future.error(e, st); // Crashlytics
+	});
+}
 
 Future<bool> areHeadphonesPluggedIn() async {
+	_listenForHeadphones();
+	if (_headphonesPluggedIn case bool pluggedIn) {
+		// Pushed from native side, no need to ask
+		return pluggedIn;
+	}
 	try {
 		return await _platform.invokeMethod<bool>('areHeadphonesPluggedIn') ?? false;
 	}
@@ -13,4 +37,4 @@ Future<bool> areHeadphonesPluggedIn() async {
 		Future.error(e, st); // Crashlytics
 		return false;
 	}
-}
\ No newline at end of file
+}
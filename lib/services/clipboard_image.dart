@@ -1,7 +1,9 @@
+import 'dart:async';
 import 'dart:io';
 
 import 'package:chan/services/persistence.dart';
 import 'package:chan/services/pick_attachment.dart';
+import 'package:chan/services/settings.dart';
 import 'package:chan/services/util.dart';
 import 'package:chan/util.dart';
 import 'package:flutter/services.dart';
@@ -9,8 +11,29 @@ import 'package:flutter/widgets.dart';
 import 'package:mime/mime.dart';
 
 const _platform = MethodChannel('com.moffatman.chan/clipboard');
+const _events = EventChannel('com.moffatman.chan/clipboardEvents');
+
+bool? _clipboardContainsImage;
+StreamSubscription<dynamic>? _clipboardSubscription;
+
+void _listenForClipboard() {
+	if (!Platform.isAndroid || _clipboardSubscription != null) {
+		return;
+	}
+	_clipboardSubscription = _events.receiveBroadcastStream().listen((event) {
+		_clipboardContainsImage = (event as bool?) ?? false;
+	}, onError: (Object e, StackTrace st) {
+		_clipboardContainsImage = null;
+		Future.error(e, st); // Crashlytics
+	});
+}
 
 Future<bool> doesClipboardContainImage() async {
+	_listenForClipboard();
+	if (_clipboardContainsImage case bool containsImage) {
+		// Pushed from native side when the clipboard changes, no need to ask
+		return containsImage;
+	}
 	try {
 		return await _platform.invokeMethod<bool>('doesClipboardContainImage') ?? false;
 	}
@@ -19,19 +42,36 @@ Future<bool> doesClipboardContainImage() async {
 	}
 }
 
+Future<File?> _writeClipboardImage(Uint8List bytes) async {
+	String? ext = lookupMimeType('', headerBytes: bytes)?.afterLast('/');
+	if (ext == 'jpeg') {
+		ext = 'jpg';
+	}
+	if (ext == null) {
+		return null;
+	}
+	final f = Persistence.shareCacheDirectory.file('${DateTime.now().millisecondsSinceEpoch}.$ext');
+	await f.create(recursive: true);
+	await f.writeAsBytes(bytes, flush: true);
+	return f;
+}
+
 Future<File?> getClipboardImageAsFile(BuildContext context) async {
+	if (Platform.isAndroid) {
+		// Copied straight to a file on the native side
+		final image = await _platform.invokeMapMethod<String, Object?>('getClipboardImageFile', {
+			'destinationDir': Persistence.shareCacheDirectory.path,
+			// Shrunk natively, so the full size image is never decoded
+			if (Settings.instance.maximumImageUploadDimension case int maxDimension) 'maxDimension': maxDimension
+		});
+		if (image?['path'] case String path) {
+			return File(path);
+		}
+		return null;
+	}
 	final image = await _platform.invokeMethod('getClipboardImage');
 	if (image case Uint8List bytes) {
-		String? ext = lookupMimeType('', headerBytes: bytes)?.afterLast('/');
-		if (ext == 'jpeg') {
-			ext = 'jpg';
-		}
-		if (ext != null) {
-			final f = Persistence.shareCacheDirectory.file('${DateTime.now().millisecondsSinceEpoch}.$ext');
-			await f.create(recursive: true);
-			await f.writeAsBytes(bytes, flush: true);
-			return f;
-		}
+		return await _writeClipboardImage(bytes);
 	}
 	else if (image case String text) {
 		Uri? url = Uri.tryParse(text);
@@ -0,0 +1,42 @@
+import 'dart:io';
+
+import 'package:chan/services/persistence.dart';
+import 'package:chan/services/util.dart';
+import 'package:flutter/services.dart';
+
+const _platform = MethodChannel('com.moffatman.chan/metrics');
+
+/// Timings for one native method, named like 'storage/saveFile'
+///
+/// [histogram] entry i counts calls which took under 2^i microseconds
+typedef NativeCallMetrics = ({String name, int count, int errors, Duration total, Duration max, int bytes, List<int> histogram});
+
+/// Every native call since launch or [resetNativeCallMetrics], only on Android
+Future<List<NativeCallMetrics>> getNativeCallMetrics() async {
+	if (!Platform.isAndroid) {
+		return [];
+	}
+	return (await _platform.invokeListMethod<Map>('getCallMetrics'))!.map((m) => (
+		name: m['name'] as String,
+		count: m['count'] as int,
+		errors: m['errors'] as int,
+		total: Duration(microseconds: m['totalMicros'] as int),
+		max: Duration(microseconds: m['maxMicros'] as int),
+		bytes: m['bytes'] as int,
+		histogram: (m['histogram'] as List).cast<int>()
+	)).toList();
+}
+
+Future<void> resetNativeCallMetrics() async {
+	if (Platform.isAndroid) {
+		await _platform.invokeMethod('resetCallMetrics');
+	}
+}
+
+/// Write them out as JSON, to be shared
+Future<File> dumpNativeCallMetrics() async {
+	final path = (await _platform.invokeMethod<String>('dumpCallMetrics', {
+		'path': Persistence.temporaryDirectory.child('native_calls.json')
+	}))!;
+	return File(path);
+}
@@ -301,23 +301,59 @@ class Notifications {
 			_onMessage(data);
 		}
 		else {
-			FlutterLocalNotificationsPlugin().show(
-				data['postId']?.tryParseInt ?? data['threadId']!.parseInt,
-				notification['title'] as String?,
-				notification['body'] as String?,
-				NotificationDetails(
-					android: AndroidNotificationDetails(
-						'up', 'Unified Push',
-						importance: Importance.high,
-						priority: Priority.high,
-						groupKey: _makeNotificationThreadId(data)
-					)
-				),
-				payload: json.encode(data)
+			await _showPushNotification(
+				id: data['postId']?.tryParseInt ?? data['threadId']!.parseInt,
+				title: notification['title'] as String?,
+				body: notification['body'] as String?,
+				data: data
 			);
 		}
 	}
 
+	/// On Android, bursts for the same thread are merged into one notification natively
+	static Future<void> _showPushNotification({
+		required int id,
+		required String? title,
+		required String? body,
+		required Map<String, String> data
+	}) async {
+		if (Platform.isAndroid) {
+			try {
+				await _platform.invokeMethod('postNotification', {
+					'userId': data['userId'],
+					'type': data['type'],
+					'board': data['board'],
+					'threadId': data['threadId'],
+					'group': _makeNotificationThreadId(data),
+					'title': title,
+					'body': body,
+					'payload': json.encode(data)
+				});
+				return;
+			}
+			on MissingPluginException {
+				// Woken up in a background isolate without MainActivity, show it the old way
+			}
+		}
+		await FlutterLocalNotificationsPlugin().show(
+			id,
+			title,
+			body,
+			NotificationDetails(
+				android: AndroidNotificationDetails(
+					'up', 'Unified Push',
+					importance: Importance.high,
+					priority: Priority.high,
+					groupKey: _makeNotificationThreadId(data)
+				),
+				iOS: DarwinNotificationDetails(
+					threadIdentifier: _makeNotificationThreadId(data)
+				)
+			),
+			payload: json.encode(data)
+		);
+	}
+
 	@pragma('vm:entry-point')
 	static Future<void> onAPNSLaunch(ApnsRemoteMessage message) async {
 		_onMessageOpenedApp(message.payload['data'] as Map);
@@ -714,22 +750,11 @@ class Notifications {
 					_onMessage(payload);
 				}
 				else {
-					FlutterLocalNotificationsPlugin().show(
-						Object.hash(id, watch.board, watch.threadId),
-						'Watched thread /${watch.board}/${watch.threadId} was ${deleted ? 'deleted' : 'archived'}',
-						'',
-						NotificationDetails(
-							android: AndroidNotificationDetails(
-								'up', 'Unified Push',
-								importance: Importance.high,
-								priority: Priority.high,
-								groupKey: _makeNotificationThreadId(payload)
-							),
-							iOS: DarwinNotificationDetails(
-								threadIdentifier: _makeNotificationThreadId(payload)
-							)
-						),
-						payload: json.encode(payload)
+					await _showPushNotification(
+						id: Object.hash(id, watch.board, watch.threadId),
+						title: 'Watched thread /${watch.board}/${watch.threadId} was ${deleted ? 'deleted' : 'archived'}',
+						body: '',
+						data: payload
 					);
 				}
 			}
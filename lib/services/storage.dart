@@ -1,12 +1,14 @@
+import 'dart:async';
 import 'dart:io';
 
-import 'package:chan/services/base64_image.dart';
 import 'package:chan/widgets/adaptive.dart';
+import 'package:chan/widgets/util.dart';
 import 'package:flutter/material.dart';
 import 'package:flutter/services.dart';
 import 'package:photo_manager/photo_manager.dart';
 
 const _platform = MethodChannel('com.moffatman.chan/storage');
+const _saveQueueEvents = EventChannel('com.moffatman.chan/saveQueueEvents');
 
 const kGallerySavePathGalleryPrefix = 'gallery://';
 
@@ -20,7 +22,10 @@ Future<String?> pickDirectory() async {
 }
 
 Future<String?> pickGallerySavePath(BuildContext context) async {
-	if (Platform.isIOS) {
+	if (Platform.isIOS || await isGallerySaveSupported()) {
+		if (!context.mounted) {
+			return null;
+		}
 		return await showAdaptiveDialog<String>(
 			context: context,
 			builder: (context) => AdaptiveAlertDialog(
@@ -30,7 +35,8 @@ Future<String?> pickGallerySavePath(BuildContext context) async {
 						child: const Text('Gallery (no album)'),
 						onPressed: () => Navigator.pop(context, kGallerySavePathGalleryPrefix)
 					),
-					AdaptiveDialogAction(
+					// Android albums are just folders, new album with the same name works there
+					if (Platform.isIOS) AdaptiveDialogAction(
 						child: const Text('Gallery (existing album)'),
 						onPressed: () async {
 							final existingAlbums = await PhotoManager.getAssetPathList(type: RequestType.common);
@@ -142,18 +148,116 @@ class InsufficientPermissionException implements Exception {
 	String toString() => 'Storage permission expired or needs to be re-acquired for "$directory"';
 }
 
+Future<T> _saveFile<T>({
+	required String sourcePath,
+	required String destinationDir,
+	required List<String> destinationSubfolders,
+	required String destinationName,
+	required bool deduplicate
+}) async {
+	try {
+		return (await _platform.invokeMethod<T>('saveFile', {
+			'sourcePath': sourcePath,
+			'destinationDir': destinationDir,
+			'destinationSubfolders': destinationSubfolders,
+			'destinationName': destinationName,
+			'deduplicate': deduplicate
+		}))!;
+	}
+	on PlatformException catch (e) {
+		if (e.code == 'DirectoryNotFound') {
+			throw DirectoryNotFoundException(destinationDir);
+		}
+		if (e.code == 'InsufficientPermission') {
+			throw InsufficientPermissionException(destinationDir);
+		}
+		rethrow;
+	}
+}
+
 Future<String> saveFile({
 	required String sourcePath,
 	required String destinationDir,
 	required List<String> destinationSubfolders,
 	required String destinationName
+}) => _saveFile<String>(
+	sourcePath: sourcePath,
+	destinationDir: destinationDir,
+	destinationSubfolders: destinationSubfolders,
+	destinationName: destinationName,
+	deduplicate: false
+);
+
+/// [deduplicated] means nothing was written, [name] is an existing file with the same contents
+typedef SaveFileDeduplicatedResult = ({String name, bool deduplicated});
+
+/// Like [saveFile], but returns an existing file in the directory if it has the same contents
+Future<SaveFileDeduplicatedResult> saveFileDeduplicated({
+	required String sourcePath,
+	required String destinationDir,
+	required List<String> destinationSubfolders,
+	required String destinationName
+}) async {
+	final result = await _saveFile<Map>(
+		sourcePath: sourcePath,
+		destinationDir: destinationDir,
+		destinationSubfolders: destinationSubfolders,
+		destinationName: destinationName,
+		deduplicate: true
+	);
+	return (name: result['name'] as String, deduplicated: result['deduplicated'] as bool);
+}
+
+typedef SaveFilesItem = ({String sourcePath, String destinationName});
+typedef SaveFilesResult = ({String? name, PlatformException? error});
+
+SaveFilesResult _parseSaveFilesResult(Map result) {
+	if (result['errorCode'] case String code) {
+		return (name: null, error: PlatformException(code: code, message: result['errorMessage'] as String?));
+	}
+	return (name: result['name'] as String, error: null);
+}
+
+Future<dynamic> _handleStorageCall(MethodCall call) async {
+	if (call.method == 'saveFileAsProgress') {
+		final arguments = call.arguments as Map;
+		_saveFileAsProgressCallbacks[arguments['id'] as int]?.call(arguments['copied'] as int, arguments['total'] as int);
+	}
+}
+
+typedef SaveQueueEvent = ({int id, bool started, SaveFilesResult? result, int pending});
+
+Stream<SaveQueueEvent>? _saveQueueEventStream;
+
+/// What the native save queue is doing, only on Android
+///
+/// Only covers what happens while listening, check [getPendingSaves] to catch up
+Stream<SaveQueueEvent> get saveQueueEvents => _saveQueueEventStream ??= _saveQueueEvents.receiveBroadcastStream().map((event) {
+	final map = event as Map;
+	return (
+		id: map['id'] as int,
+		started: map['type'] == 'started',
+		result: map['type'] == 'started' ? null : _parseSaveFilesResult(map),
+		pending: map['pending'] as int
+	);
+});
+
+/// Hand files over to be saved natively, without waiting for them
+///
+/// The queue is kept on disk, so saves continue after the app is restarted
+/// Results come through [saveQueueEvents]
+/// Returns the job ids, in the same order as [files]
+Future<List<int>> enqueueSaves({
+	required String destinationDir,
+	required List<String> destinationSubfolders,
+	required List<SaveFilesItem> files
 }) async {
 	try {
-		return (await _platform.invokeMethod<String>('saveFile', {
-			'sourcePath': sourcePath,
+		return (await _platform.invokeListMethod<int>('enqueueSaves', {
 			'destinationDir': destinationDir,
 			'destinationSubfolders': destinationSubfolders,
-			'destinationName': destinationName
+			'sourcePaths': [for (final file in files) file.sourcePath],
+			'destinationNames': [for (final file in files) file.destinationName]
 		}))!;
 	}
 	on PlatformException catch (e) {
@@ -167,6 +271,111 @@ Future<String> saveFile({
 	}
 }
 
+/// Ids of queued saves which haven't finished yet
+Future<List<int>> getPendingSaves() async {
+	return (await _platform.invokeListMethod<int>('getPendingSaves'))!;
+}
+
+/// Waits for the results of saves handed to [enqueueSaves]
+///
+/// Listens from creation, as small files may finish before [enqueueSaves] returns
+class SaveQueueTracker {
+	final void Function(int id, SaveFilesResult result)? onResult;
+	final _ids = <int>{};
+	final _results = <int, SaveFilesResult>{};
+	late final StreamSubscription<SaveQueueEvent> _subscription;
+	Completer<void>? _allSaved;
+
+	SaveQueueTracker({this.onResult}) {
+		_subscription = saveQueueEvents.listen((event) {
+			if (event.result case SaveFilesResult result) {
+				_results[event.id] = result;
+				if (_ids.contains(event.id)) {
+					onResult?.call(event.id, result);
+				}
+				_checkAllSaved();
+			}
+		});
+	}
+
+	void _checkAllSaved() {
+		if (_allSaved case Completer<void> allSaved when !allSaved.isCompleted && _ids.every(_results.containsKey)) {
+			allSaved.complete();
+		}
+	}
+
+	/// Track jobs which were already queued, such as those from [getPendingSaves]
+	void track(Iterable<int> ids) {
+		for (final id in ids) {
+			if (!_ids.add(id)) {
+				continue;
+			}
+			if (_results[id] case SaveFilesResult result) {
+				onResult?.call(id, result);
+			}
+		}
+		_checkAllSaved();
+	}
+
+	Future<List<int>> enqueue({
+		required String destinationDir,
+		required List<String> destinationSubfolders,
+		required List<SaveFilesItem> files
+	}) async {
+		final ids = await enqueueSaves(
+			destinationDir: destinationDir,
+			destinationSubfolders: destinationSubfolders,
+			files: files
+		);
+		track(ids);
+		return ids;
+	}
+
+	/// Results of everything tracked, once they have all finished
+	Future<Map<int, SaveFilesResult>> wait() async {
+		if (_allSaved?.isCompleted ?? true) {
+			_allSaved = Completer();
+		}
+		final allSaved = _allSaved!;
+		_checkAllSaved();
+		await allSaved.future;
+		return {
+			for (final id in _ids) id: _results[id]!
+		};
+	}
+
+	Future<void> dispose() => _subscription.cancel();
+}
+
+bool? _isGallerySaveSupported;
+
+/// Whether [saveFilesToGallery] can be used, which needs Android 10
+Future<bool> isGallerySaveSupported() async {
+	if (!Platform.isAndroid) {
+		return false;
+	}
+	return _isGallerySaveSupported ??= (await _platform.invokeMethod<bool>('isGallerySaveSupported'))!;
+}
+
+/// Save images and videos straight into the Android gallery, under Pictures or Movies
+///
+/// Inserted in one batch, so they show up without waiting for a media scan
+/// Individual failures don't fail the whole batch, they are returned in their result
+Future<List<SaveFilesResult>> saveFilesToGallery({
+	String? album,
+	required List<SaveFilesItem> files
+}) async {
+	return (await _platform.invokeListMethod<Map>('saveToGallery', {
+		'album': album,
+		'files': [
+			for (final file in files) {
+				'sourcePath': file.sourcePath,
+				'destinationName': file.destinationName
+			}
+		]
+	}))!.map(_parseSaveFilesResult).toList();
+}
+
 final bool isSaveFileAsSupported = Platform.isAndroid || Platform.isIOS;
 
 enum SaveAsFileType {
@@ -207,7 +416,8 @@ Future<String?> saveFileAs({
 							}
 						}
 					),
-					AdaptiveDialogAction(
+					// Android albums are just folders, new album with the same name works there
+					if (Platform.isIOS) AdaptiveDialogAction(
 						child: const Text('Gallery (existing album)'),
 						onPressed: () async {
 							final existingAlbums = await PhotoManager.getAssetPathList(type: RequestType.common);
@@ -312,12 +522,93 @@ Future<String?> saveFileAs({
 			)
 		);
 	}
+	if (Platform.isAndroid) {
+		return await _saveFileAsAndroid(context: context, sourcePath: sourcePath, destinationName: destinationName);
+	}
 	return await _platform.invokeMethod<String>('saveFileAs', {
 		'sourcePath': sourcePath,
 		'destinationName': destinationName
 	});
 }
 
+int _saveFileAsId = 0;
+final _saveFileAsProgressCallbacks = <int, void Function(int copied, int total)>{};
+
+/// The copy happens natively after the picker closes, show its progress and allow cancelling it
+Future<String?> _saveFileAsAndroid({
+	required BuildContext context,
+	required String sourcePath,
+	required String destinationName
+}) async {
+	_platform.setMethodCallHandler(_handleStorageCall);
+	final id = _saveFileAsId++;
+	final progress = ValueNotifier<(int, int)>((0, 0));
+	final started = Completer<void>();
+	_saveFileAsProgressCallbacks[id] = (copied, total) {
+		if (!started.isCompleted) {
+			started.complete();
+		}
+		progress.value = (copied, total);
+	};
+	try {
+		final future = _platform.invokeMethod<String>('saveFileAs', {
+			'id': id,
+			'sourcePath': sourcePath,
+			'destinationName': destinationName
+		});
+		await Future.any([future, started.future]);
+		if (!started.isCompleted || !context.mounted) {
+			// Picker was cancelled
+			return await future;
+		}
+		return await modalLoad(context, 'Saving...', (controller) async {
+			void onProgress() {
+				final (copied, total) = progress.value;
+				controller.progress.value = ('${formatFilesize(copied)} / ${formatFilesize(total)}', total == 0 ? null : copied / total);
+			}
+			onProgress();
+			progress.addListener(onProgress);
+			controller.cancelToken.whenCancel.then((_) => _platform.invokeMethod('cancelSaveFileAs', {
+				'id': id
+			}));
+			try {
+				return await future;
+			}
+			finally {
+				progress.removeListener(onProgress);
+			}
+		}, cancellable: true, wait: const Duration(milliseconds: 300));
+	}
+	finally {
+		_saveFileAsProgressCallbacks.remove(id);
+		progress.dispose();
+	}
+}
+
+/// Shrink an image natively, without decoding it at full size
+///
+/// [format] is 'jpeg', 'webp' or 'png', PNG can only meet [maxBytes] by shrinking further
+/// Returns null if it already fits, otherwise a new file in [destinationDir]
+Future<File?> downscaleImage({
+	required String sourcePath,
+	required String destinationDir,
+	int? maxDimension,
+	int? maxBytes,
+	String format = 'jpeg'
+}) async {
+	final result = await _platform.invokeMapMethod<String, Object?>('downscaleImage', {
+		'sourcePath': sourcePath,
+		'destinationDir': destinationDir,
+		'maxDimension': maxDimension,
+		'maxBytes': maxBytes,
+		'format': format
+	});
+	if (result?['path'] case String path) {
+		return File(path);
+	}
+	return null;
+}
+
 typedef AndroidPickerIntent = ({String label, ImageProvider? icon, String package});
 
 Future<List<AndroidPickerIntent>> getPickerList() async {
@@ -328,8 +619,7 @@ Future<List<AndroidPickerIntent>> getPickerList() async {
 		label: intent['label'] as String,
 		package: intent['package'] as String,
 		icon: switch (intent['icon']) {
-			'' => null,
-			String base64 => Base64ImageProvider(base64),
+			Uint8List bytes when bytes.isNotEmpty => MemoryImage(bytes),
 			_ => null
 		}
 	)).toList();
@@ -41,6 +41,7 @@ import 'package:flutter/cupertino.dart';
 import 'package:flutter/foundation.dart';
 import 'package:flutter/material.dart';
 import 'package:flutter/rendering.dart';
+import 'package:flutter/services.dart';
 import 'package:flutter_inappwebview/flutter_inappwebview.dart' hide ContextMenu;
 import 'package:media_kit_video/media_kit_video_controls/src/controls/extensions/duration.dart';
 import 'package:mutex/mutex.dart';
@@ -1248,6 +1249,93 @@ class AttachmentViewerController extends ChangeNotifier {
 		notifyListeners();
 	}
 
+	String? _galleryAlbumName(String destination, {required bool useDestinationAlbum}) {
+		final albumNameFromPath = Uri.decodeFull(destination.substring(kGallerySavePathGalleryPrefix.length)).nonEmptyOrNull;
+		return useDestinationAlbum ? albumNameFromPath : Settings.instance.gallerySavePathOrganizing.albumNameFor(this, albumNameFromPath);
+	}
+
+	/// Save many into the Android gallery at once, with one batch per album
+	///
+	/// They should already be preloaded, returns the errors for those which failed
+	static Future<Map<AttachmentViewerController, Object>> downloadAllToAndroidGallery(List<AttachmentViewerController> controllers, {
+		required String destination,
+		bool useDestinationAlbum = false
+	}) async {
+		final batches = <String?, List<AttachmentViewerController>>{};
+		for (final controller in controllers) {
+			batches.putIfAbsent(controller._galleryAlbumName(destination, useDestinationAlbum: useDestinationAlbum), () => []).add(controller);
+		}
+		final failed = <AttachmentViewerController, Object>{};
+		for (final batch in batches.entries) {
+			final List<SaveFilesResult> results;
+			try {
+				results = await saveFilesToGallery(
+					album: batch.key,
+					files: [
+						for (final controller in batch.value) (sourcePath: controller.getFile().path, destinationName: controller._downloadFilename(false))
+					]
+				);
+			}
+			on PlatformException catch (e) {
+				for (final controller in batch.value) {
+					failed[controller] = e;
+				}
+				continue;
+			}
+			for (int i = 0; i < batch.value.length; i++) {
+				final controller = batch.value[i];
+				if (results[i].error case PlatformException error) {
+					failed[controller] = error;
+					continue;
+				}
+				controller._isDownloaded = true;
+				controller.onDownloaded?.call();
+				controller.notifyListeners();
+			}
+		}
+		return failed;
+	}
+
+	/// Hand many to the native save queue, so they are still saved if the app is killed
+	///
+	/// They should already be preloaded, returns which controller each job id is for
+	/// Pass the results from [tracker] to [onQueuedDownloadResult]
+	static Future<Map<int, AttachmentViewerController>> enqueueAllToAndroidFolder(SaveQueueTracker tracker, List<AttachmentViewerController> controllers, {
+		required String destination,
+		bool useDestinationFolder = false
+	}) async {
+		// One call per subfolder, so it's only resolved once
+		final batches = <String, ({List<String> subfolders, List<AttachmentViewerController> controllers})>{};
+		for (final controller in controllers) {
+			final subfolders = useDestinationFolder ? <String>[] : Settings.instance.gallerySavePathOrganizing.subfoldersFor(controller);
+			batches.putIfAbsent(subfolders.join('/'), () => (subfolders: subfolders, controllers: [])).controllers.add(controller);
+		}
+		final queued = <int, AttachmentViewerController>{};
+		for (final batch in batches.values) {
+			final ids = await tracker.enqueue(
+				destinationDir: destination,
+				destinationSubfolders: batch.subfolders,
+				files: [
+					for (final controller in batch.controllers) (sourcePath: controller.getFile().path, destinationName: controller._downloadFilename(false))
+				]
+			);
+			for (int i = 0; i < ids.length; i++) {
+				queued[ids[i]] = batch.controllers[i];
+			}
+		}
+		return queued;
+	}
+
+	/// Record how a save from [enqueueAllToAndroidFolder] went
+	void onQueuedDownloadResult(SaveFilesResult result) {
+		if (result.error != null) {
+			return;
+		}
+		_isDownloaded = true;
+		onDownloaded?.call();
+		notifyListeners();
+	}
+
 	Future<String?> download({bool force = false, bool saveAs = false, String? dir}) async {
 		if (_isDownloaded && !force && dir == null) return null;
 		final settings = Settings.instance;
@@ -1273,10 +1361,20 @@ class AttachmentViewerController extends ChangeNotifier {
 			else {
 				final destination = dir ?? (Settings.gallerySavePathSetting.value ??= await pickGallerySavePath(context));
 				if (destination != null) {
-					if (destination.startsWith(kGallerySavePathGalleryPrefix)) {
-						final albumNameFromPath = Uri.decodeFull(destination.substring(kGallerySavePathGalleryPrefix.length)).nonEmptyOrNull;
+					if (destination.startsWith(kGallerySavePathGalleryPrefix) && Platform.isAndroid) {
+						final result = (await saveFilesToGallery(
+							album: _galleryAlbumName(destination, useDestinationAlbum: dir != null),
+							files: [(sourcePath: getFile().path, destinationName: filename)]
+						)).single;
+						if (result.error case PlatformException error) {
+							throw error;
+						}
+						filename = result.name!;
+						successful = true;
+					}
+					else if (destination.startsWith(kGallerySavePathGalleryPrefix)) {
 						AssetPathEntity? album;
-						final albumName = dir != null ? albumNameFromPath : settings.gallerySavePathOrganizing.albumNameFor(this, albumNameFromPath);
+						final albumName = _galleryAlbumName(destination, useDestinationAlbum: dir != null);
 						if (albumName != null) {
 							final existingAlbums = await PhotoManager.getAssetPathList(type: RequestType.common);
 							album = existingAlbums.tryFirstWhere((album) => album.name == albumName);
@@ -1297,13 +1395,13 @@ class AttachmentViewerController extends ChangeNotifier {
 					else {
 						File source = getFile();
 						try {
-							// saveFile may modify name if there is a collision
-							filename = await saveFile(
+							// The name may change if there is a collision, or be an existing file with the same contents
+							filename = (await saveFileDeduplicated(
 								sourcePath: source.path,
 								destinationDir: destination,
 								destinationSubfolders: dir != null ? [] : settings.gallerySavePathOrganizing.subfoldersFor(this),
 								destinationName: filename
-							);
+							)).name;
 							_isDownloaded = true;
 							successful = true;
 						}
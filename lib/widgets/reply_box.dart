@@ -23,6 +23,7 @@ import 'package:chan/services/outbox.dart';
 import 'package:chan/services/persistence.dart';
 import 'package:chan/services/pick_attachment.dart';
 import 'package:chan/services/settings.dart';
+import 'package:chan/services/storage.dart';
 import 'package:chan/services/text_highlighting.dart';
 import 'package:chan/services/theme.dart';
 import 'package:chan/services/util.dart';
@@ -903,6 +904,31 @@ Future<_ReplyBoxFile?> _makeAttachment(PickedAttachment? originalAttachment, Fil
 					return null;
 				}
 			}
+			if (Platform.isAndroid && (ext == 'jpg' || ext == 'jpeg' || ext == 'webp') && !forceWebpToPng) {
+				final maximumDimension = forceMaximumDimension ?? settings.maximumImageUploadDimension;
+				if (maximumDimension != null && math.max(scan.width ?? 0, scan.height ?? 0) > maximumDimension) {
+					// Much cheaper than decoding it at full size for the transcode
+					File? downscaled;
+					try {
+						downscaled = await downscaleImage(
+							sourcePath: file.path,
+							destinationDir: Persistence.shareCacheDirectory.path,
+							maxDimension: maximumDimension,
+							maxBytes: forceMaximumSizeInBytes ?? board.maxImageSizeBytes
+						);
+					}
+					on PlatformException catch (e, st) {
+						// The transcode below can still handle it
+						Future.error(e, st); // Report to crashlytics
+					}
+					if (downscaled != null) {
+						file = downscaled;
+						ext = 'jpg';
+						size = (await file.stat()).size;
+						scan = await MediaScan.scan(file.uri);
+					}
+				}
+			}
 			if (ext == 'jpg' || ext == 'jpeg' || ext == 'webp' || ext == 'avif') {
 				file = await _showTranscodeWindow(
 					source: file,